@@ -0,0 +1,169 @@
+package com.example.android.pets;
+
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDataGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrolls the catalog by a fixed distance on every frame and records the frame times. A frame
+ * that comes more than half a refresh interval late is counted as jank. The time the list
+ * spends scrolling, binding the rows that come into view, is recorded per frame as well.
+ *
+ * The pets are inserted into the app's database before the catalog starts and deleted again
+ * afterwards, the pets already there are left alone.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CatalogScrollJankTest {
+
+    private static final String LOG_TAG = CatalogScrollJankTest.class.getSimpleName();
+
+    private static final int PETS = 2000;
+
+    private static final int FRAMES = 600;
+
+    // Distance scrolled on every frame, in dp
+    private static final int SCROLL_PER_FRAME_DP = 30;
+
+    // Share of the frames which may be late, emulators and busy devices drop some frames anyway
+    private static final double MAX_JANK_FRACTION = 0.1;
+
+    private static final long LOAD_TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public final ActivityTestRule<CatalogActivity> mActivityRule =
+            new ActivityTestRule<>(CatalogActivity.class, false, false);
+
+    private ContentResolver mContentResolver;
+
+    // Largest _ID before the test inserted its pets
+    private long mLastIdBefore;
+
+    @Before
+    public void insertPets() {
+        mContentResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+
+        Uri lastPet = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT, "1")
+                .build();
+        Cursor cursor = mContentResolver.query(lastPet, new String[] {PetEntry._ID}, null, null,
+                PetEntry._ID + " DESC");
+        try {
+            mLastIdBefore = cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        new PetDataGenerator(42).insert(mContentResolver, PETS);
+    }
+
+    @After
+    public void deletePets() {
+        mContentResolver.delete(PetEntry.CONTENT_URI, PetEntry._ID + ">?",
+                new String[] {String.valueOf(mLastIdBefore)});
+    }
+
+    @Test
+    public void scrollingTheCatalogDoesntJank() throws InterruptedException {
+        CatalogActivity activity = mActivityRule.launchActivity(null);
+        final RecyclerView list = (RecyclerView) activity.findViewById(R.id.pets_list_view);
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        waitForPets(instrumentation, list);
+
+        final int step = Math.round(SCROLL_PER_FRAME_DP *
+                activity.getResources().getDisplayMetrics().density);
+        final long[] frameTimes = new long[FRAMES];
+        final long[] scrollTimes = new long[FRAMES];
+        final CountDownLatch done = new CountDownLatch(1);
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                    private int mFrame;
+
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        frameTimes[mFrame] = frameTimeNanos;
+                        long start = System.nanoTime();
+                        list.scrollBy(0, step);
+                        scrollTimes[mFrame] = System.nanoTime() - start;
+
+                        if (++mFrame < FRAMES) {
+                            Choreographer.getInstance().postFrameCallback(this);
+                        } else {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+        });
+        assertTrue("Scrolling didn't finish", done.await(60, TimeUnit.SECONDS));
+
+        float refreshRate = activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+        long frameInterval = (long) (1000000000 / refreshRate);
+        long[] intervals = new long[FRAMES - 1];
+        int janky = 0;
+        for (int i = 1; i < FRAMES; i++) {
+            intervals[i - 1] = frameTimes[i] - frameTimes[i - 1];
+            if (intervals[i - 1] > frameInterval * 3 / 2) {
+                janky++;
+            }
+        }
+        Arrays.sort(intervals);
+        Arrays.sort(scrollTimes);
+        double jankFraction = janky / (double) intervals.length;
+        Log.i(LOG_TAG, janky + " of " + intervals.length + " frames janky, frame time p50 " +
+                intervals[intervals.length / 2] / 1000 + " us, p90 " +
+                intervals[intervals.length * 9 / 10] / 1000 + " us, max " +
+                intervals[intervals.length - 1] / 1000 + " us; scroll and bind p50 " +
+                scrollTimes[FRAMES / 2] / 1000 + " us, p90 " +
+                scrollTimes[FRAMES * 9 / 10] / 1000 + " us");
+
+        assertTrue(janky + " of " + intervals.length + " frames janky",
+                jankFraction <= MAX_JANK_FRACTION);
+    }
+
+    // Wait until the list shows a page of pets
+    private static void waitForPets(Instrumentation instrumentation, final RecyclerView list) {
+        final int[] itemCount = new int[1];
+        long deadline = SystemClock.uptimeMillis() + LOAD_TIMEOUT_MILLIS;
+        while (SystemClock.uptimeMillis() < deadline) {
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    itemCount[0] = list.getAdapter().getItemCount();
+                }
+            });
+            if (itemCount[0] >= PetListLoader.PAGE_SIZE) {
+                return;
+            }
+            SystemClock.sleep(50);
+        }
+        throw new AssertionError("Only " + itemCount[0] + " pets loaded");
+    }
+}
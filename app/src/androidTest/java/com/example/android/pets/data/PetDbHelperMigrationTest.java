@@ -0,0 +1,169 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades a version 1 database of 100k pets, which has no indexes, through every migration of
+ * {@link PetDbHelper}. The pets have to survive, and the filters of the catalog are timed
+ * before and after the indexes of the version 2 migration.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetDbHelperMigrationTest {
+
+    private static final String LOG_TAG = PetDbHelperMigrationTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "migration_test.db";
+
+    private static final int ROWS = 100000;
+
+    // Every query runs this often, the median counts
+    private static final int RUNS = 21;
+
+    private static final String QUERY_NAME = "SELECT " + PetEntry._ID + " FROM " +
+            PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_NAME + "=? COLLATE NOCASE";
+    private static final String QUERY_BREED = "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME +
+            " WHERE " + PetEntry.COLUMN_PET_BREED + "=?";
+    private static final String QUERY_GENDER_WEIGHT = "SELECT " + PetEntry._ID + " FROM " +
+            PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_GENDER + "=? ORDER BY " +
+            PetEntry.COLUMN_PET_WEIGHT + " LIMIT 50";
+
+    private Context mContext;
+
+    // Values of a pet of known breed in the middle of the table, the queries look for it
+    private ContentValues mProbe;
+
+    @Before
+    public void createVersion1Database() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+
+        // The schema PetDbHelper.onCreate started with, before any migration
+        SQLiteDatabase database = mContext.openOrCreateDatabase(DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            database.execSQL("CREATE TABLE " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
+                    PetEntry.COLUMN_PET_BREED + " TEXT, " +
+                    PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
+                    PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+            database.setVersion(1);
+
+            PetDataGenerator generator = new PetDataGenerator(42);
+            database.beginTransaction();
+            try {
+                for (int i = 0; i < ROWS; i++) {
+                    ContentValues pet = generator.next();
+                    database.insert(PetEntry.TABLE_NAME, null, pet);
+                    if (mProbe == null && i >= ROWS / 2 &&
+                            pet.getAsString(PetEntry.COLUMN_PET_BREED) != null) {
+                        mProbe = pet;
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void migrationKeepsPetsAndIndexesTheFilters() {
+        long[] before;
+        SQLiteDatabase version1 = mContext.openOrCreateDatabase(DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            before = timeQueries(version1);
+        } finally {
+            version1.close();
+        }
+
+        PetDbHelper helper = new PetDbHelper(mContext, DATABASE_NAME);
+        try {
+            SQLiteDatabase database = helper.getWritableDatabase();
+            assertEquals(ROWS, DatabaseUtils.queryNumEntries(database, PetEntry.TABLE_NAME));
+
+            assertPlanUses(database, QUERY_NAME, "pets_name_index");
+            assertPlanUses(database, QUERY_BREED, "pets_breed_index");
+            assertPlanUses(database, QUERY_GENDER_WEIGHT, "pets_gender_weight_index");
+
+            long[] after = timeQueries(database);
+            Log.i(LOG_TAG, "Median ns of the name, breed and gender/weight queries on " + ROWS +
+                    " pets: " + Arrays.toString(before) + " without indexes, " +
+                    Arrays.toString(after) + " with indexes");
+
+            // A lookup by name reads a handful of rows instead of the whole table
+            assertTrue("Name query took " + after[0] + " ns with its index, " + before[0] +
+                    " ns without", after[0] < before[0]);
+        } finally {
+            helper.close();
+        }
+    }
+
+    // Returns the median time of the name, breed and gender/weight queries, in ns
+    private long[] timeQueries(SQLiteDatabase database) {
+        return new long[] {
+                timeQuery(database, QUERY_NAME, mProbe.getAsString(PetEntry.COLUMN_PET_NAME)),
+                timeQuery(database, QUERY_BREED, mProbe.getAsString(PetEntry.COLUMN_PET_BREED)),
+                timeQuery(database, QUERY_GENDER_WEIGHT,
+                        mProbe.getAsString(PetEntry.COLUMN_PET_GENDER))
+        };
+    }
+
+    private static long timeQuery(SQLiteDatabase database, String sql, String argument) {
+        long[] times = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            Cursor cursor = database.rawQuery(sql, new String[] {argument});
+            try {
+                assertTrue(cursor.getCount() > 0);
+            } finally {
+                cursor.close();
+            }
+            times[run] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+    private static void assertPlanUses(SQLiteDatabase database, String sql, String index) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, new String[] {"1"});
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        assertTrue("Plan of " + sql + " doesn't use " + index + ":\n" + plan,
+                plan.toString().contains(index));
+    }
+}
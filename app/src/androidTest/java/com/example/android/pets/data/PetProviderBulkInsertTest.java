@@ -0,0 +1,101 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Bulk inserts pets which leave out optional values, or a required one. Missing values get the
+ * same defaults as pets inserted one by one, and a pet without a name rejects the whole batch.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetProviderBulkInsertTest {
+
+    private static final String DATABASE_NAME = "bulk_insert_test.db";
+
+    private Context mContext;
+
+    private PetProvider mProvider;
+
+    @Before
+    public void createProvider() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mProvider = new PetProvider(DATABASE_NAME);
+        mProvider.attachInfo(mContext, null);
+    }
+
+    @After
+    public void deleteDatabase() {
+        mProvider.shutdown();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void petWithoutGenderIsInsertedAsUnknown() {
+        ContentValues withGender = pet("Rex");
+        withGender.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        withGender.put(PetEntry.COLUMN_PET_WEIGHT, 20);
+        ContentValues withoutGender = pet("Luna");
+
+        assertEquals(2, mProvider.bulkInsert(PetEntry.CONTENT_URI,
+                new ContentValues[] {withGender, withoutGender}));
+        // The values of the caller aren't changed
+        assertNull(withoutGender.get(PetEntry.COLUMN_PET_GENDER));
+
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, new String[] {
+                PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT},
+                null, null, PetEntry._ID);
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Rex", cursor.getString(0));
+            assertEquals(PetEntry.GENDER_MALE, cursor.getInt(1));
+            assertEquals(20, cursor.getInt(2));
+            cursor.moveToNext();
+            assertEquals("Luna", cursor.getString(0));
+            assertEquals(PetEntry.GENDER_UNKNOWN, cursor.getInt(1));
+            assertEquals(0, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void petWithoutNameRejectsTheBatch() {
+        try {
+            mProvider.bulkInsert(PetEntry.CONTENT_URI,
+                    new ContentValues[] {pet("Rex"), new ContentValues()});
+            fail("A pet without a name was inserted");
+        } catch (IllegalArgumentException expected) {
+            // The batch is rejected as a whole
+        }
+
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, new String[] {PetEntry._ID},
+                null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues pet(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        return values;
+    }
+}
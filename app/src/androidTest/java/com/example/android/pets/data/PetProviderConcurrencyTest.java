@@ -0,0 +1,147 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queries the first page of the catalog while another thread bulk inserts 10k pets. With
+ * write-ahead logging the reads use their own connections and see the table as it was before
+ * the write, instead of waiting for its transaction to commit.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetProviderConcurrencyTest {
+
+    private static final String LOG_TAG = PetProviderConcurrencyTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "concurrency_test.db";
+
+    // Pets in the table before the write starts
+    private static final int INITIAL_ROWS = 10000;
+
+    // Pets of the concurrent write, one bulkInsert transaction
+    private static final int WRITE_ROWS = 10000;
+
+    private static final String[] LIST_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    private static final Uri FIRST_PAGE_URI = PetEntry.CONTENT_URI.buildUpon()
+            .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT, "50")
+            .build();
+
+    private Context mContext;
+
+    private PetProvider mProvider;
+
+    private final PetDataGenerator mGenerator = new PetDataGenerator(42);
+
+    @Before
+    public void createProvider() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mProvider = new PetProvider(DATABASE_NAME);
+        mProvider.attachInfo(mContext, null);
+        assertEquals(INITIAL_ROWS,
+                mProvider.bulkInsert(PetEntry.CONTENT_URI, newPets(INITIAL_ROWS)));
+    }
+
+    @After
+    public void deleteDatabase() {
+        mProvider.shutdown();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void listQueriesDontWaitForConcurrentWrite() throws InterruptedException {
+        final ContentValues[] batch = newPets(WRITE_ROWS);
+        final long[] writeTimes = new long[2];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeTimes[0] = System.nanoTime();
+                mProvider.bulkInsert(PetEntry.CONTENT_URI, batch);
+                writeTimes[1] = System.nanoTime();
+            }
+        }, "PetProviderConcurrencyTest-writer");
+
+        long[] latencies = new long[100000];
+        int queries = 0;
+        int queriesDuringWrite = 0;
+        writer.start();
+        while (writer.isAlive() && queries < latencies.length) {
+            long start = System.nanoTime();
+            queryFirstPage();
+            latencies[queries++] = System.nanoTime() - start;
+            if (writer.isAlive()) {
+                queriesDuringWrite++;
+            }
+        }
+        writer.join();
+
+        long writeNanos = writeTimes[1] - writeTimes[0];
+        latencies = Arrays.copyOf(latencies, queries);
+        Arrays.sort(latencies);
+        long median = latencies[queries / 2];
+        Log.i(LOG_TAG, queriesDuringWrite + " list queries during a write of " + WRITE_ROWS +
+                " pets taking " + writeNanos / 1000000 + " ms, median " + median / 1000 +
+                " us, max " + latencies[queries - 1] / 1000 + " us");
+
+        // A blocked reader would finish once, after the write committed
+        assertTrue("Only " + queriesDuringWrite + " queries finished during the write",
+                queriesDuringWrite > 1);
+        assertTrue("Median query took " + median / 1000 + " us during a write of " +
+                writeNanos / 1000 + " us", median < writeNanos / 4);
+        assertEquals(INITIAL_ROWS + WRITE_ROWS, countPets());
+    }
+
+    // Query and read the first page, like the catalog loader does
+    private void queryFirstPage() {
+        Cursor cursor = mProvider.query(FIRST_PAGE_URI, LIST_PROJECTION, null, null,
+                PetEntry._ID);
+        try {
+            assertTrue(cursor.getCount() > 0);
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countPets() {
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, new String[] {PetEntry._ID},
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContentValues[] newPets(int count) {
+        ContentValues[] pets = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            pets[i] = mGenerator.next();
+        }
+        return pets;
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetTombstoneEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs {@link PetSyncEngine} against a shelter server mocked in the same process. The engine
+ * writes to a provider of its own database through a content resolver which only knows that
+ * provider, and keeps its sync token apart from the app's.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetSyncEngineTest {
+
+    private static final String DATABASE_NAME = "sync_test.db";
+
+    // Prefix of the preferences of the engine under test
+    private static final String PREFERENCES_PREFIX = "sync_test_";
+
+    private MockWebServer mServer;
+
+    private Context mTargetContext;
+
+    private PetProvider mProvider;
+
+    private ContentResolver mContentResolver;
+
+    private PetSyncEngine mEngine;
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = new MockWebServer();
+        mServer.start();
+
+        mTargetContext = InstrumentationRegistry.getTargetContext();
+        mTargetContext.deleteDatabase(DATABASE_NAME);
+        mProvider = new PetProvider(DATABASE_NAME);
+        mProvider.attachInfo(mTargetContext, null);
+
+        MockContentResolver contentResolver = new MockContentResolver();
+        contentResolver.addProvider(PetContract.CONTENT_AUTHORITY, mProvider);
+        mContentResolver = contentResolver;
+
+        mEngine = new PetSyncEngine(new SyncTestContext(mTargetContext, contentResolver),
+                mServer.url("/api/").toString());
+        mEngine.resetToken();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        mServer.shutdown();
+        mProvider.shutdown();
+        mTargetContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void pullStoresServerPetsAndContinuesFromToken() throws Exception {
+        JSONObject changes = changes("token-1");
+        changes.getJSONArray("pets").put(serverPet("r1", "Rex", 1000));
+        mServer.enqueue(json(changes));
+
+        // Pulled pets are clean, there is nothing to push
+        assertEquals(1, mEngine.sync());
+        RecordedRequest pull = mServer.takeRequest();
+        assertEquals("GET", pull.getMethod());
+        assertEquals("/api/pets/changes", pull.getPath());
+
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI, new String[] {
+                PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_DIRTY}, PetEntry.COLUMN_REMOTE_ID + "=?",
+                new String[] {"r1"}, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Rex", cursor.getString(0));
+            assertEquals(0, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+
+        mServer.enqueue(json(changes("token-2")));
+        assertEquals(0, mEngine.sync());
+        assertEquals("/api/pets/changes?since=token-1", mServer.takeRequest().getPath());
+    }
+
+    @Test
+    public void pushSendsLocalPetAndStoresItsRemoteId() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Luna");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        Uri petUri = mContentResolver.insert(PetEntry.CONTENT_URI, values);
+        long localId = ContentUris.parseId(petUri);
+
+        mServer.enqueue(json(changes("token-1")));
+        JSONObject accepted = new JSONObject();
+        accepted.put("local_id", localId);
+        accepted.put("id", "r9");
+        mServer.enqueue(json(new JSONObject().put("pets", new JSONArray().put(accepted))));
+
+        assertEquals(1, mEngine.sync());
+        mServer.takeRequest();
+        RecordedRequest push = mServer.takeRequest();
+        assertEquals("POST", push.getMethod());
+        JSONObject pushed = new JSONObject(push.getBody().readUtf8())
+                .getJSONArray("pets").getJSONObject(0);
+        assertEquals(localId, pushed.getLong("local_id"));
+        assertEquals("Luna", pushed.getString(PetEntry.COLUMN_PET_NAME));
+
+        Cursor cursor = mContentResolver.query(petUri, new String[] {
+                PetEntry.COLUMN_REMOTE_ID, PetEntry.COLUMN_DIRTY}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            assertEquals("r9", cursor.getString(0));
+            assertEquals(0, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void deletionsTravelBothWays() throws Exception {
+        JSONObject changes = changes("token-1");
+        changes.getJSONArray("pets")
+                .put(serverPet("r1", "Rex", 1000))
+                .put(serverPet("r2", "Max", 1000));
+        mServer.enqueue(json(changes));
+        assertEquals(2, mEngine.sync());
+        mServer.takeRequest();
+
+        // Deleted here, the tombstone goes to the server
+        mContentResolver.delete(PetEntry.CONTENT_URI, PetEntry.COLUMN_REMOTE_ID + "=?",
+                new String[] {"r1"});
+        // Deleted on the server
+        JSONObject deletions = changes("token-2");
+        deletions.getJSONArray("deleted").put("r2");
+        mServer.enqueue(json(deletions));
+        mServer.enqueue(json(new JSONObject()));
+
+        assertEquals(2, mEngine.sync());
+        mServer.takeRequest();
+        JSONObject push = new JSONObject(mServer.takeRequest().getBody().readUtf8());
+        assertEquals("r1", push.getJSONArray("deleted").getString(0));
+
+        assertEquals(0, count(PetEntry.CONTENT_URI));
+        assertEquals(0, count(PetTombstoneEntry.CONTENT_URI));
+    }
+
+    @Test(expected = IOException.class)
+    public void serverErrorFailsSyncAndKeepsToken() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(500));
+        try {
+            mEngine.sync();
+        } finally {
+            assertNull(mTargetContext.getSharedPreferences(PREFERENCES_PREFIX + "pet_sync",
+                    Context.MODE_PRIVATE).getString("token", null));
+        }
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mContentResolver.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static JSONObject changes(String token) throws JSONException {
+        return new JSONObject()
+                .put("token", token)
+                .put("pets", new JSONArray())
+                .put("deleted", new JSONArray());
+    }
+
+    private static JSONObject serverPet(String id, String name, long modified)
+            throws JSONException {
+        return new JSONObject()
+                .put("id", id)
+                .put(PetEntry.COLUMN_PET_NAME, name)
+                .put(PetEntry.COLUMN_PET_BREED, JSONObject.NULL)
+                .put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE)
+                .put(PetEntry.COLUMN_PET_WEIGHT, 20)
+                .put(PetEntry.COLUMN_MODIFIED, modified);
+    }
+
+    private static MockResponse json(JSONObject body) {
+        return new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBody(body.toString());
+    }
+
+    // Hands the engine the content resolver of the test and preferences of its own
+    private static class SyncTestContext extends ContextWrapper {
+
+        private final ContentResolver mContentResolver;
+
+        SyncTestContext(Context base, ContentResolver contentResolver) {
+            super(base);
+            mContentResolver = contentResolver;
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mContentResolver;
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return super.getSharedPreferences(PREFERENCES_PREFIX + name, mode);
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package com.example.android.pets.data;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmarks of the data layer: PetDbHelper open time and the PetProvider query, insert,
+ * update, delete, batch, bulk and export paths at several table sizes. Runs against its own
+ * database file, the pets of the app are left alone.
+ *
+ * Run it on a device with
+ *
+ *   adb shell am instrument -w [-e sizes 1000,100000] \
+ *       com.example.android.pets/.data.DataLayerBenchmark
+ *
+ * Every result is printed to logcat, returned in the instrumentation results as nanoseconds
+ * per operation and written as JSON to Android/data/com.example.android.pets/files/benchmark/
+ * on external storage, so results of two releases can be compared.
+ */
+public class DataLayerBenchmark extends Instrumentation {
+
+    private static final String LOG_TAG = DataLayerBenchmark.class.getSimpleName();
+
+    // Database file used by the benchmarks
+    private static final String DATABASE_NAME = "benchmark.db";
+
+    // Table sizes benchmarked unless the "sizes" argument says otherwise
+    private static final String DEFAULT_SIZES = "1000,100000,1000000";
+
+    // Number of single row operations timed per benchmark
+    private static final int OPERATIONS = 1000;
+
+    // Number of queries timed per query benchmark
+    private static final int QUERIES = 200;
+
+    // Rows per bulkInsert call while filling the table
+    private static final int BULK_BATCH_SIZE = 5000;
+
+    // Writes of each kind timed by the compiled statement benchmark
+    private static final int COMPILED_WRITES = 100000;
+
+    // Pets cycled through by the compiled statement benchmark, created up front so generating
+    // them isn't counted as allocations of the writes
+    private static final int COMPILED_WRITE_VALUES = 1000;
+
+    // Rows written by the concurrent writer while the list is queried
+    private static final int CONCURRENT_WRITE_ROWS = 10000;
+
+    // Page size of the catalog list
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] LIST_PROJECTION = {
+            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED
+    };
+
+    private final Random mRandom = new Random(42);
+
+    // Pets with the distributions of a real shelter
+    private final PetDataGenerator mGenerator = new PetDataGenerator(42);
+
+    private final JSONArray mResults = new JSONArray();
+
+    private final Bundle mResultBundle = new Bundle();
+
+    private String mSizes = DEFAULT_SIZES;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        if (arguments != null && arguments.getString("sizes") != null) {
+            mSizes = arguments.getString("sizes");
+        }
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        try {
+            for (String size : mSizes.split(",")) {
+                runBenchmarks(Integer.parseInt(size.trim()));
+            }
+            writeResults();
+            finish(Activity.RESULT_OK, mResultBundle);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Benchmark failed", e);
+            Bundle error = new Bundle();
+            error.putString(Instrumentation.REPORT_KEY_STREAMRESULT, "Benchmark failed: " + e);
+            finish(Activity.RESULT_CANCELED, error);
+        }
+    }
+
+    // Run all benchmarks against a table of the given number of pets
+    private void runBenchmarks(int rows) throws Exception {
+        Context context = getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+
+        // Creating the database runs every migration
+        long start = System.nanoTime();
+        PetDbHelper helper = new PetDbHelper(context, DATABASE_NAME);
+        helper.getWritableDatabase();
+        record("db_create", rows, 1, System.nanoTime() - start);
+        helper.close();
+
+        PetProvider provider = new PetProvider(DATABASE_NAME);
+        provider.attachInfo(context, null);
+        try {
+            benchmarkBulkInsert(provider, rows);
+            benchmarkPageQueries(provider, rows);
+            benchmarkSearch(provider, rows);
+            benchmarkExport(provider, rows);
+            benchmarkPetQueries(provider, rows);
+            long[] ids = benchmarkInserts(provider, rows);
+            benchmarkUpdates(provider, rows, ids);
+            benchmarkBatch(provider, rows, ids);
+            benchmarkDeletes(provider, rows, ids);
+            benchmarkQueriesDuringWrite(provider, rows);
+        } finally {
+            provider.shutdown();
+        }
+
+        // Opening an existing database only configures the connection
+        start = System.nanoTime();
+        helper = new PetDbHelper(context, DATABASE_NAME);
+        SQLiteDatabase database = helper.getWritableDatabase();
+        record("db_open", rows, 1, System.nanoTime() - start);
+        try {
+            benchmarkCompiledWrites(database, rows);
+            benchmarkChangeLog(database, rows);
+        } finally {
+            helper.close();
+        }
+
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    // Fill the table through bulkInsert
+    private void benchmarkBulkInsert(PetProvider provider, int rows) throws JSONException {
+        long elapsed = 0;
+        for (int inserted = 0; inserted < rows; inserted += BULK_BATCH_SIZE) {
+            ContentValues[] batch = new ContentValues[Math.min(BULK_BATCH_SIZE, rows - inserted)];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = randomPet();
+            }
+
+            long start = System.nanoTime();
+            provider.bulkInsert(PetEntry.CONTENT_URI, batch);
+            elapsed += System.nanoTime() - start;
+        }
+        record("bulk_insert", rows, rows, elapsed);
+    }
+
+    // Pages of the catalog list, at random offsets and at the end of the table
+    private void benchmarkPageQueries(PetProvider provider, int rows) throws JSONException {
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            queryPage(provider, pageUri(mRandom.nextInt(Math.max(1, rows - PAGE_SIZE))),
+                    null, null, PetEntry._ID);
+        }
+        record("query_page", rows, QUERIES, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            queryPage(provider, pageUri(Math.max(0, rows - PAGE_SIZE)), null, null, PetEntry._ID);
+        }
+        record("query_last_page", rows, QUERIES, System.nanoTime() - start);
+
+        // Filtered and sorted by name, served by the name index
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            queryPage(provider, pageUri(0),
+                    PetEntry.COLUMN_PET_NAME + " = ? COLLATE NOCASE",
+                    new String[] {randomName()},
+                    PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE");
+        }
+        record("query_by_name", rows, QUERIES, System.nanoTime() - start);
+    }
+
+    // Prefix searches through the full-text index
+    private void benchmarkSearch(PetProvider provider, int rows) throws JSONException {
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            Uri uri = PetEntry.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_SEARCH,
+                            randomName().substring(0, 2))
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT,
+                            String.valueOf(PAGE_SIZE))
+                    .build();
+            queryPage(provider, uri, null, null, null);
+        }
+        record("search", rows, QUERIES, System.nanoTime() - start);
+    }
+
+    // Streaming the whole table through the export pipe, in both formats
+    private void benchmarkExport(PetProvider provider, int rows) throws Exception {
+        String[] formats = {PetContract.FORMAT_CSV, PetContract.FORMAT_JSON};
+        byte[] buffer = new byte[8 * 1024];
+        for (String format : formats) {
+            Uri uri = PetEntry.CONTENT_EXPORT_URI.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_FORMAT, format)
+                    .build();
+
+            long start = System.nanoTime();
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                    provider.openFile(uri, "r"));
+            try {
+                while (in.read(buffer) != -1) {
+                    // Only the time to drain the pipe matters
+                }
+            } finally {
+                in.close();
+            }
+            record("export_" + format, rows, rows, System.nanoTime() - start);
+        }
+    }
+
+    // Single pets, first mostly missing the row cache, then hitting it
+    private void benchmarkPetQueries(PetProvider provider, int rows) throws JSONException {
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            queryPage(provider, petUri(1 + mRandom.nextInt(rows)), null, null, null);
+        }
+        record("query_pet_uncached", rows, QUERIES, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            queryPage(provider, petUri(1 + i % 10), null, null, null);
+        }
+        record("query_pet_cached", rows, QUERIES, System.nanoTime() - start);
+    }
+
+    // Single inserts, returns the _IDs of the new pets
+    private long[] benchmarkInserts(PetProvider provider, int rows) throws JSONException {
+        long[] ids = new long[OPERATIONS];
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            ids[i] = ContentUris.parseId(provider.insert(PetEntry.CONTENT_URI, randomPet()));
+        }
+        record("insert", rows, OPERATIONS, System.nanoTime() - start);
+        return ids;
+    }
+
+    // Updates of single pets through their own URI
+    private void benchmarkUpdates(PetProvider provider, int rows, long[] ids)
+            throws JSONException {
+        long start = System.nanoTime();
+        for (long id : ids) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(60));
+            provider.update(petUri(id), values, null, null);
+        }
+        record("update", rows, ids.length, System.nanoTime() - start);
+    }
+
+    // The same updates as one batch
+    private void benchmarkBatch(PetProvider provider, int rows, long[] ids) throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            operations.add(ContentProviderOperation.newUpdate(petUri(id))
+                    .withValue(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(60))
+                    .withYieldAllowed(true)
+                    .build());
+        }
+
+        long start = System.nanoTime();
+        provider.applyBatch(operations);
+        record("apply_batch_update", rows, ids.length, System.nanoTime() - start);
+    }
+
+    // Deletes of single pets through their own URI
+    private void benchmarkDeletes(PetProvider provider, int rows, long[] ids)
+            throws JSONException {
+        long start = System.nanoTime();
+        for (long id : ids) {
+            provider.delete(petUri(id), null, null);
+        }
+        record("delete", rows, ids.length, System.nanoTime() - start);
+    }
+
+    // Latency of the first catalog page while another thread bulk inserts
+    private void benchmarkQueriesDuringWrite(final PetProvider provider, int rows)
+            throws InterruptedException, JSONException {
+        final ContentValues[] batch = new ContentValues[CONCURRENT_WRITE_ROWS];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = randomPet();
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                provider.bulkInsert(PetEntry.CONTENT_URI, batch);
+            }
+        });
+
+        long[] latencies = new long[QUERIES];
+        int count = 0;
+        writer.start();
+        while (writer.isAlive() && count < latencies.length) {
+            long start = System.nanoTime();
+            queryPage(provider, pageUri(0), null, null, PetEntry._ID);
+            latencies[count++] = System.nanoTime() - start;
+        }
+        writer.join();
+
+        recordLatencies("query_page_during_bulk_insert", rows, Arrays.copyOf(latencies, count));
+    }
+
+    // Inserts, updates and deletes through SQLiteDatabase compared to the compiled statement
+    // pool, timed and with the allocations per write. Each run is rolled back, so the table
+    // keeps its size.
+    private void benchmarkCompiledWrites(SQLiteDatabase database, int rows)
+            throws JSONException {
+        ContentValues[] pets = new ContentValues[COMPILED_WRITE_VALUES];
+        ContentValues[] weights = new ContentValues[COMPILED_WRITE_VALUES];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = randomPet();
+            weights[i] = new ContentValues();
+            weights[i].put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(60));
+        }
+        long[] ids = new long[COMPILED_WRITES];
+        String selection = PetEntry._ID + "=?";
+
+        database.beginTransactionNonExclusive();
+        try {
+            startAllocationCounting();
+            long start = System.nanoTime();
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = database.insert(PetEntry.TABLE_NAME, null, pets[i % pets.length]);
+            }
+            recordWrites("raw_insert_sqlitedatabase", rows, ids.length, start);
+
+            startAllocationCounting();
+            start = System.nanoTime();
+            for (int i = 0; i < ids.length; i++) {
+                database.update(PetEntry.TABLE_NAME, weights[i % weights.length], selection,
+                        new String[] {String.valueOf(ids[i])});
+            }
+            recordWrites("raw_update_sqlitedatabase", rows, ids.length, start);
+
+            startAllocationCounting();
+            start = System.nanoTime();
+            for (long id : ids) {
+                database.delete(PetEntry.TABLE_NAME, selection,
+                        new String[] {String.valueOf(id)});
+            }
+            recordWrites("raw_delete_sqlitedatabase", rows, ids.length, start);
+        } finally {
+            database.endTransaction();
+        }
+
+        // One statement for each kind of write
+        PetStatementCache statements = new PetStatementCache(database, 3);
+        database.beginTransactionNonExclusive();
+        try {
+            startAllocationCounting();
+            long start = System.nanoTime();
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = statements.insert(pets[i % pets.length]);
+            }
+            recordWrites("raw_insert_statement_cache", rows, ids.length, start);
+
+            startAllocationCounting();
+            start = System.nanoTime();
+            for (int i = 0; i < ids.length; i++) {
+                statements.updateById(ids[i], weights[i % weights.length]);
+            }
+            recordWrites("raw_update_statement_cache", rows, ids.length, start);
+
+            startAllocationCounting();
+            start = System.nanoTime();
+            for (long id : ids) {
+                statements.deleteById(id);
+            }
+            recordWrites("raw_delete_statement_cache", rows, ids.length, start);
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    // Inserts with and without the triggers writing the change log, both rolled back. Dropping
+    // the triggers is rolled back as well.
+    private void benchmarkChangeLog(SQLiteDatabase database, int rows) throws JSONException {
+        ContentValues[] pets = new ContentValues[COMPILED_WRITE_VALUES];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = randomPet();
+        }
+
+        database.beginTransactionNonExclusive();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < COMPILED_WRITES; i++) {
+                database.insert(PetEntry.TABLE_NAME, null, pets[i % pets.length]);
+            }
+            record("bulk_insert_change_log", rows, COMPILED_WRITES, System.nanoTime() - start);
+        } finally {
+            database.endTransaction();
+        }
+
+        database.beginTransactionNonExclusive();
+        try {
+            for (String trigger : PetDbHelper.CHANGE_LOG_TRIGGERS) {
+                database.execSQL("DROP TRIGGER " + trigger);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < COMPILED_WRITES; i++) {
+                database.insert(PetEntry.TABLE_NAME, null, pets[i % pets.length]);
+            }
+            record("bulk_insert_no_change_log", rows, COMPILED_WRITES,
+                    System.nanoTime() - start);
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    // Count the allocations of this thread from now on, read by recordWrites
+    @SuppressWarnings("deprecation")
+    private static void startAllocationCounting() {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+    }
+
+    // Query and fully read a cursor, like the catalog loader does
+    private static void queryPage(PetProvider provider, Uri uri, String selection,
+                                  String[] selectionArgs, String sortOrder) {
+        Cursor cursor = provider.query(uri, LIST_PROJECTION, selection, selectionArgs, sortOrder);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Uri pageUri(int offset) {
+        return PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE))
+                .appendQueryParameter(PetContract.QUERY_PARAMETER_OFFSET, String.valueOf(offset))
+                .build();
+    }
+
+    private static Uri petUri(long id) {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+    }
+
+    private ContentValues randomPet() {
+        return mGenerator.next();
+    }
+
+    private String randomName() {
+        return mGenerator.nextName();
+    }
+
+    // Store the result of a benchmark that ran the given number of operations
+    private void record(String name, int rows, int operations, long elapsedNanos)
+            throws JSONException {
+        addResult(name, rows, newResult(name, rows, operations, elapsedNanos),
+                elapsedNanos / Math.max(1, operations));
+    }
+
+    // Store the result of writes started at the given System.nanoTime(), together with the
+    // allocations counted since startAllocationCounting
+    @SuppressWarnings("deprecation")
+    private void recordWrites(String name, int rows, int operations, long start)
+            throws JSONException {
+        long elapsedNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+
+        JSONObject result = newResult(name, rows, operations, elapsedNanos);
+        result.put("allocs_per_op", Debug.getThreadAllocCount() / (double) operations);
+        result.put("alloc_bytes_per_op", Debug.getThreadAllocSize() / (double) operations);
+        addResult(name, rows, result, elapsedNanos / Math.max(1, operations));
+    }
+
+    private static JSONObject newResult(String name, int rows, int operations,
+                                        long elapsedNanos) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        result.put("table_rows", rows);
+        result.put("operations", operations);
+        result.put("total_ms", elapsedNanos / 1000000.0);
+        result.put("ns_per_op", elapsedNanos / Math.max(1, operations));
+        result.put("ops_per_sec", operations * 1000000000.0 / Math.max(1, elapsedNanos));
+        return result;
+    }
+
+    // Store the latency percentiles of a benchmark that timed every operation
+    private void recordLatencies(String name, int rows, long[] latencies) throws JSONException {
+        Arrays.sort(latencies);
+
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        result.put("table_rows", rows);
+        result.put("operations", latencies.length);
+        if (latencies.length > 0) {
+            result.put("p50_ns", latencies[latencies.length / 2]);
+            result.put("p99_ns", latencies[latencies.length * 99 / 100]);
+            result.put("max_ns", latencies[latencies.length - 1]);
+        }
+        addResult(name, rows, result,
+                latencies.length == 0 ? 0 : latencies[latencies.length / 2]);
+    }
+
+    private void addResult(String name, int rows, JSONObject result, long nanosPerOperation) {
+        Log.i(LOG_TAG, result.toString());
+        mResults.put(result);
+        mResultBundle.putLong(name + "@" + rows, nanosPerOperation);
+    }
+
+    // Write all results of the run to the external files directory of the app
+    private void writeResults() throws JSONException, IOException {
+        JSONObject report = new JSONObject();
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("device", Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("results", mResults);
+
+        File directory = new File(getTargetContext().getExternalFilesDir(null), "benchmark");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, "data-layer-" + System.currentTimeMillis() + ".json");
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(report.toString(2));
+        } finally {
+            writer.close();
+        }
+        Log.i(LOG_TAG, "Results written to " + file);
+        mResultBundle.putString("results_file", file.getAbsolutePath());
+    }
+}
@@ -16,32 +16,37 @@
 package com.example.android.pets;
 
 import android.content.ContentUris;
-import android.content.ContentValues;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
-import android.support.v4.widget.CursorAdapter;
-import android.support.v4.widget.SimpleCursorAdapter;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.Toast;
 
 
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetImporter;
+import com.example.android.pets.data.PetRepository;
+
+import java.util.List;
 
 import static com.example.android.pets.R.string.delete;
 
@@ -50,20 +55,101 @@ import static com.example.android.pets.R.string.delete;
  * Displays list of pets that were entered and stored in the app.
  */
 public class CatalogActivity extends AppCompatActivity
-        implements LoaderManager.LoaderCallbacks<Cursor>{
+        implements LoaderManager.LoaderCallbacks<PetListLoader.Result>{
 
     private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
 
     // unique loader id
     private static final int PET_LOADER = 0;
 
+    // key of the loader argument holding the search query
+    private static final String ARG_SEARCH_QUERY = "search_query";
+
+    // how long the search waits for the user to stop typing before it queries, in ms
+    private static final long SEARCH_DEBOUNCE_DELAY = 300;
+
+    // seed of the made-up pets, so every run generates the same pets
+    private static final long GENERATOR_SEED = 42;
+
+    // request code of the document picker for CSV files to import
+    private static final int IMPORT_REQUEST = 1;
+
+    // search query of the current loader, null when all pets are shown
+    private String mSearchQuery;
+
+    // Handler used to delay the search until the user stops typing
+    private final Handler mSearchHandler = new Handler();
+
+    // Runs the search for the latest query once the debounce delay has passed
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Bundle args = new Bundle();
+            args.putString(ARG_SEARCH_QUERY, mSearchQuery);
+            getSupportLoaderManager().restartLoader(PET_LOADER, args, CatalogActivity.this);
+        }
+    };
+
+    // whether there are pets before or after the pages of the current loader
+    private boolean mHasPreviousPage;
+    private boolean mHasNextPage;
+
     // This is the Adapter being used to display the list's data.
-    PetCursorAdapter mCursorAdapter;
+    PetAdapter mPetAdapter;
+
+    // View shown instead of the list while there are no pets
+    private View mEmptyView;
+
+    // whether the loader delivered pets yet, the empty view waits for it
+    private boolean mListLoaded;
+
+    // Measures the launch until the list shows, null after a configuration change
+    private StartupTimer mStartupTimer;
+
+    // First page of pets shown on launch until the loader delivers
+    private CatalogSnapshot mSnapshot;
+
+    // Import started from this screen, kept across configuration changes
+    private PetImporter mImporter;
+
+    // Generate and sync started from this screen, kept across configuration changes
+    private PendingResult mGenerateResult;
+    private PendingResult mSyncResult;
+
+    // Shows the progress of the import in the app bar
+    private final PetImporter.Listener mImportListener = new PetImporter.Listener() {
+        @Override
+        public void onProgress(int imported, int rejected) {
+            getSupportActionBar().setSubtitle(getString(R.string.import_progress, imported));
+        }
+
+        @Override
+        public void onFinished(int imported, int rejected) {
+            getSupportActionBar().setSubtitle(null);
+            Toast.makeText(CatalogActivity.this,
+                    getString(R.string.import_finished, imported, rejected),
+                    Toast.LENGTH_LONG).show();
+        }
+
+        @Override
+        public void onFailed(int imported, int rejected, Exception e) {
+            getSupportActionBar().setSubtitle(null);
+            Toast.makeText(CatalogActivity.this, getString(R.string.import_failed, imported),
+                    Toast.LENGTH_LONG).show();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        // Only a fresh launch is measured, not a recreation of the screen
+        if (savedInstanceState == null) {
+            mStartupTimer = new StartupTimer(this);
+        }
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
+        if (mStartupTimer != null) {
+            mStartupTimer.watchFirstFrame();
+        }
 
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
@@ -75,23 +161,22 @@ public class CatalogActivity extends AppCompatActivity
             }
         });
 
-        // Find the ListView which will be populated with the pet data
-        ListView petListView = (ListView) findViewById(R.id.pets_list_view);
+        // Find the RecyclerView which will be populated with the pet data
+        RecyclerView petRecyclerView = (RecyclerView) findViewById(R.id.pets_list_view);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        petRecyclerView.setLayoutManager(layoutManager);
+        petRecyclerView.addItemDecoration(
+                new DividerItemDecoration(this, layoutManager.getOrientation()));
 
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        // Set the view to show if the adapter is empty
-        petListView.setEmptyView(emptyView);
+        // Find the empty view, it only shows when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
         // Create an empty adapter we will use to display the loaded data.
-        // We pass null for the cursor, then update it in onLoadFinished()
-        mCursorAdapter = new PetCursorAdapter (this, null);
-        petListView.setAdapter(mCursorAdapter);
-
-        // Setup the click listener
-        petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // The list is filled in onLoadFinished(). A click on a pet opens it in the editor.
+        PetThumbnailLoader thumbnailLoader = PetThumbnailLoader.getInstance(this);
+        mPetAdapter = new PetAdapter(thumbnailLoader, new PetAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onPetClick(long id) {
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
                 // passes the selected Pet's URI
                 // The Uri would be content://com.example.android.pets/pets/2 if the user
@@ -105,9 +190,147 @@ public class CatalogActivity extends AppCompatActivity
                 startActivity(intent);
             }
         });
+        petRecyclerView.setAdapter(mPetAdapter);
+
+        // Show the pets of the last launch right away, the loader replaces them with the live
+        // pets and only the rows which changed since are rebound. After a configuration change
+        // the loader still has its pets and delivers them at once.
+        mSnapshot = new CatalogSnapshot(this);
+        if (savedInstanceState == null) {
+            List<PetItem> snapshot = mSnapshot.read();
+            mPetAdapter.submitList(snapshot);
+            if (mStartupTimer != null) {
+                mStartupTimer.onSnapshotShown(snapshot.size());
+            }
+        }
+
+        // Show the empty view whenever the adapter runs out of pets
+        mPetAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+
+        // Load the page next to the loaded pets when the user scrolls close to either end,
+        // the loader drops the page furthest away once it holds enough of them
+        petRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                PetListLoader loader = getPetListLoader();
+                if (loader == null) {
+                    return;
+                }
+
+                int margin = PetListLoader.PAGE_SIZE / 2;
+                if (mHasNextPage && dy > 0 && layoutManager.findLastVisibleItemPosition()
+                        >= mPetAdapter.getItemCount() - margin) {
+                    loader.loadNextPage();
+                }
+                if (mHasPreviousPage && dy < 0
+                        && layoutManager.findFirstVisibleItemPosition() < margin) {
+                    loader.loadPreviousPage();
+                }
+            }
+        });
+
+        // Keep the search after a configuration change, the loader keeps its pages
+        Bundle args = null;
+        if (savedInstanceState != null) {
+            mSearchQuery = savedInstanceState.getString(ARG_SEARCH_QUERY);
+            args = new Bundle();
+            args.putString(ARG_SEARCH_QUERY, mSearchQuery);
+        }
 
         // initialize loader
-        getSupportLoaderManager().initLoader(PET_LOADER, null, this);
+        getSupportLoaderManager().initLoader(PET_LOADER, args, this);
+
+        // Follow an import, generate or sync which was started before a configuration change
+        RetainedWork work = (RetainedWork) getLastCustomNonConfigurationInstance();
+        if (work != null) {
+            mImporter = work.importer;
+            mGenerateResult = work.generateResult;
+            mSyncResult = work.syncResult;
+        }
+        if (mImporter != null && mImporter.isRunning()) {
+            mImporter.setListener(mImportListener);
+            getSupportActionBar().setSubtitle(getString(R.string.import_progress, 0));
+        }
+        if (mGenerateResult != null) {
+            mGenerateResult.attach(this);
+        }
+        if (mSyncResult != null) {
+            mSyncResult.attach(this);
+        }
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        RetainedWork work = new RetainedWork();
+        work.importer = mImporter;
+        work.generateResult = mGenerateResult;
+        work.syncResult = mSyncResult;
+        return work;
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(ARG_SEARCH_QUERY, mSearchQuery);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Drop a search that is still waiting for its delay
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+
+        // A running import goes on without this screen, it has its checkpoints
+        if (mImporter != null) {
+            mImporter.setListener(null);
+        }
+        // A running generate or sync only reports to the next instance of this screen
+        if (mGenerateResult != null) {
+            mGenerateResult.attach(null);
+        }
+        if (mSyncResult != null) {
+            mSyncResult.attach(null);
+        }
+    }
+
+    // Show the empty view instead of the list while there are no pets. Until the first pets
+    // are loaded it is unknown whether there are any, so the empty view doesn't flash on launch.
+    private void updateEmptyView() {
+        boolean empty = mListLoaded && mPetAdapter.getItemCount() == 0;
+        mEmptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+    }
+
+    // Returns the loader of the pets, null before it is created
+    private PetListLoader getPetListLoader() {
+        Loader<PetListLoader.Result> loader = getSupportLoaderManager().getLoader(PET_LOADER);
+        return (PetListLoader) loader;
+    }
+
+    // Search for the given query once the user stops typing, starting again from the first page.
+    private void search(String query) {
+        String searchQuery = TextUtils.isEmpty(query) ? null : query.trim();
+        if (TextUtils.equals(searchQuery, mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = searchQuery;
+
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DEBOUNCE_DELAY);
     }
 
 
@@ -116,67 +339,143 @@ public class CatalogActivity extends AppCompatActivity
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
-        return true;
-    }
 
-    // Insert dummy data when user clicks on the menu item
-    private void insertPet() {
+        // Search pets as the user types in the app bar
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
 
-        Uri mNewUri;
+        // Show the search which was running before a configuration change
+        if (mSearchQuery != null) {
+            searchItem.expandActionView();
+            searchView.setQuery(mSearchQuery, false);
+        }
 
-        // Create a new map of values, where column names are the keys
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
-        values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
-        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
 
-        // Insert the new row, returning the primary key value of the new row
-        mNewUri = getContentResolver().insert(
-                PetEntry.CONTENT_URI,
-                values
-        );
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
+        return true;
+    }
 
-        long newRowId = ContentUris.parseId(mNewUri);
+    // Ask the user how many made-up pets to insert
+    private void showGenerateDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.generate_dialog_title);
+        builder.setItems(R.array.array_generate_count_options,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        int[] counts = getResources().getIntArray(R.array.array_generate_counts);
+                        generatePets(counts[which]);
+                    }
+                });
+        builder.create().show();
+    }
 
-        Log.d(LOG_TAG, "New row ID " + newRowId);
+    // Insert the given number of made-up pets in the background and report how long it took
+    private void generatePets(int count) {
+        // An earlier one still running only shows its toast
+        if (mGenerateResult != null) {
+            mGenerateResult.attach(null);
+        }
+        mGenerateResult = new GenerateResult(getApplicationContext(), count);
+        mGenerateResult.attach(this);
+        PetRepository.getInstance(this).generate(count, GENERATOR_SEED, mGenerateResult);
     }
 
-    // Helper method to delete all pets in the database.
-    private void deleteAllPets() {
-        // Defines a variable to contain the number of rows deleted
-        int mRowsDeleted = 0;
+    // Let the user pick a CSV file to import
+    private void pickImportFile() {
+        if (mImporter != null && mImporter.isRunning()) {
+            Toast.makeText(this, R.string.import_running, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/*");
+        startActivityForResult(intent, IMPORT_REQUEST);
+    }
 
-        // Deletes the words that match the selection criteria
-        mRowsDeleted = getContentResolver().delete(
-                PetEntry.CONTENT_URI, // The content URI to access the pet data
-                null,                 // where (an SQL WHERE clause)
-                null                  // selectionArgs - the values that will be replaced in where clause
-        );
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != IMPORT_REQUEST || resultCode != RESULT_OK || data == null) {
+            return;
+        }
 
-        Log.d("deleted_rows_number", String.valueOf(mRowsDeleted));
+        // Keep the access to the file, so a failed import can resume after a restart
+        Uri source = data.getData();
+        try {
+            getContentResolver().takePersistableUriPermission(source,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            Log.w(LOG_TAG, "No persistable permission for " + source, e);
+        }
 
-        // Show a toast message depending on whether or not the insertion was successful
-        if(mRowsDeleted == 0) {
-            // If the row ID is 0, then a user doesn't delete anything
-            Toast.makeText(this, R.string.editor_delete_pets_failed, Toast.LENGTH_SHORT).show();
-        } else {
-            // Otherwise, the deletion was successful and we can display a toast
-            Toast.makeText(
-                    this,
-                    R.string.editor_delete_pets_successful,
-                    Toast.LENGTH_SHORT
-            ).show();
+        mImporter = new PetImporter(getApplicationContext(), source);
+        mImporter.start(mImportListener);
+        getSupportActionBar().setSubtitle(getString(R.string.import_progress, 0));
+    }
+
+    // Sync the pets with the shelter server in the background
+    private void syncPets() {
+        // An earlier one still running only shows its toast
+        if (mSyncResult != null) {
+            mSyncResult.attach(null);
         }
+        mSyncResult = new SyncResult(getApplicationContext());
+        mSyncResult.attach(this);
+        PetRepository.getInstance(this).sync(getString(R.string.sync_server_url), mSyncResult);
+    }
+
+    // Helper method to delete all pets in the database, in the background.
+    private void deleteAllPets() {
+        PetRepository.getInstance(this).delete(PetEntry.CONTENT_URI, new PetRepository.Callback() {
+            @Override
+            public void onWriteFinished(Uri uri, int rowsDeleted) {
+                Log.d("deleted_rows_number", String.valueOf(rowsDeleted));
+
+                // Show a toast message depending on whether or not the deletion was successful
+                if(rowsDeleted == 0) {
+                    // If the row count is 0, then a user doesn't delete anything
+                    Toast.makeText(getApplicationContext(), R.string.editor_delete_pets_failed,
+                            Toast.LENGTH_SHORT).show();
+                } else {
+                    // Otherwise, the deletion was successful and we can display a toast
+                    Toast.makeText(
+                            getApplicationContext(),
+                            R.string.editor_delete_pets_successful,
+                            Toast.LENGTH_SHORT
+                    ).show();
+                }
+            }
+        });
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
-            // Respond to a click on the "Insert dummy data" menu option
+            // Respond to a click on the "Generate test pets" menu option
             case R.id.action_insert_dummy_data:
-                insertPet();
+                showGenerateDialog();
+                return true;
+            // Respond to a click on the "Import from CSV" menu option
+            case R.id.action_import:
+                pickImportFile();
+                return true;
+            // Respond to a click on the "Sync now" menu option
+            case R.id.action_sync:
+                syncPets();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
@@ -189,38 +488,44 @@ public class CatalogActivity extends AppCompatActivity
 
     // Called when a new Loader needs to be created
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // These are the pets rows that we will retrieve
-        String[] projection = new String[] {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED
-        };
-
-        // create and return a CursorLoader that will take care of
-        // creating a Cursor for the data being displayed
-        return new CursorLoader(
-                this,                   // Parent activity context
-                PetEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null                    // Default sort order
-        );
+    public Loader<PetListLoader.Result> onCreateLoader(int id, Bundle args) {
+        // The loader starts with the first page and loads more as the user scrolls, it never
+        // holds more than a few pages however long the list is.
+        String searchQuery = args == null ? null : args.getString(ARG_SEARCH_QUERY);
+
+        // create and return a loader that will take care of
+        // reading the pets being displayed
+        return new PetListLoader(this, searchQuery);
     }
 
     // Called when a previously created loader has finished loading
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update the PetCursorAdapter with this new cursor containing updated pet data
-        mCursorAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<PetListLoader.Result> loader, PetListLoader.Result data) {
+        // Update the PetAdapter with the new pet data, only changed rows are rebound
+        mHasPreviousPage = data.hasPrevious;
+        mHasNextPage = data.hasNext;
+        mListLoaded = true;
+        mPetAdapter.submitList(data.pets);
+        updateEmptyView();
+
+        // Keep the first page for the next launch, whenever the pets change. The loader may
+        // have been kept across a configuration change, so it is asked whether it searches.
+        if (!((PetListLoader) loader).isSearch() && data.startsAtFirstPage) {
+            mSnapshot.write(data.pets);
+        }
+
+        if (mStartupTimer != null) {
+            mStartupTimer.onListLoaded(data.pets.size());
+        }
     }
 
     // Called when a previously created loader is reset, making the data unavailable
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<PetListLoader.Result> loader) {
         // Callback called when data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        mHasPreviousPage = false;
+        mHasNextPage = false;
+        mPetAdapter.submitList(null);
     }
 
     // Show a dialog that warns the user that he wants delete all pet entries
@@ -251,4 +556,95 @@ public class CatalogActivity extends AppCompatActivity
         AlertDialog alertDialog = builder.create();
         alertDialog.show();
     }
+
+    // Work of this screen which outlives a configuration change
+    private static class RetainedWork {
+        PetImporter importer;
+        PendingResult generateResult;
+        PendingResult syncResult;
+    }
+
+    /**
+     * Progress and result of a generate or sync, shown in the app bar of whichever instance of
+     * the screen is attached. It holds no instance itself while the screen is recreated, so a
+     * result arriving then only shows its toast.
+     */
+    private abstract static class PendingResult implements PetRepository.Callback {
+
+        private final Context mContext;
+
+        private CatalogActivity mActivity;
+
+        private boolean mFinished;
+
+        PendingResult(Context context) {
+            mContext = context;
+        }
+
+        // Show the progress in the app bar of the given screen, null while there is none
+        void attach(CatalogActivity activity) {
+            mActivity = activity;
+            if (activity != null && !mFinished) {
+                activity.getSupportActionBar().setSubtitle(getProgress(mContext));
+            }
+        }
+
+        @Override
+        public void onWriteFinished(Uri uri, int rowCount) {
+            mFinished = true;
+            if (mActivity != null) {
+                mActivity.getSupportActionBar().setSubtitle(null);
+            }
+            Toast.makeText(mContext, getMessage(mContext, uri, rowCount), Toast.LENGTH_LONG)
+                    .show();
+        }
+
+        abstract String getProgress(Context context);
+
+        abstract String getMessage(Context context, Uri uri, int rowCount);
+    }
+
+    // Made-up pets being inserted, reports how long it took
+    private static class GenerateResult extends PendingResult {
+
+        private final int mCount;
+
+        private final long mStart = SystemClock.elapsedRealtime();
+
+        GenerateResult(Context context, int count) {
+            super(context);
+            mCount = count;
+        }
+
+        @Override
+        String getProgress(Context context) {
+            return context.getString(R.string.generate_progress, mCount);
+        }
+
+        @Override
+        String getMessage(Context context, Uri uri, int rowCount) {
+            long elapsed = SystemClock.elapsedRealtime() - mStart;
+            return context.getString(R.string.generate_finished, rowCount, elapsed);
+        }
+    }
+
+    // Sync with the shelter server, a null URI means it failed
+    private static class SyncResult extends PendingResult {
+
+        SyncResult(Context context) {
+            super(context);
+        }
+
+        @Override
+        String getProgress(Context context) {
+            return context.getString(R.string.sync_progress);
+        }
+
+        @Override
+        String getMessage(Context context, Uri uri, int rowCount) {
+            return uri == null
+                    ? context.getString(R.string.sync_failed)
+                    : context.getString(R.string.sync_finished, rowCount);
+        }
+    }
 }
@@ -0,0 +1,153 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The first page of the catalog kept in a small binary file, so a launch can show the pets
+ * before the loader has even opened the database. Reading the file takes well under a
+ * millisecond, it is read on the main thread while the activity is created. Writes go to a
+ * background thread and replace the file in one rename, so a crash never leaves half a snapshot.
+ *
+ * The snapshot is only a placeholder: the adapter compares it with the live pets once they are
+ * loaded, so a stale snapshot just means a few rows change right after launch.
+ */
+final class CatalogSnapshot {
+
+    private static final String LOG_TAG = CatalogSnapshot.class.getSimpleName();
+
+    // Name of the snapshot in the cache directory
+    private static final String FILE_NAME = "catalog_snapshot";
+
+    // Format of the file, a file of another version is ignored
+    private static final int VERSION = 1;
+
+    /** Number of pets kept, enough to fill the screen of a tablet */
+    static final int MAX_PETS = 20;
+
+    // Single thread, so the snapshots are written in order
+    private static final Executor WRITE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final File mFile;
+
+    // Pets of the snapshot last read or written, used on the main thread only
+    private List<PetItem> mPets = Collections.emptyList();
+
+    CatalogSnapshot(Context context) {
+        mFile = new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Returns the pets of the stored snapshot, or an empty list if there is no usable snapshot.
+     */
+    List<PetItem> read() {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return Collections.emptyList();
+                }
+                int count = in.readInt();
+                List<PetItem> pets = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    pets.add(new PetItem(in.readLong(), readString(in), readString(in),
+                            readString(in)));
+                }
+                mPets = Collections.unmodifiableList(pets);
+                return mPets;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // First launch, or the system cleared the cache
+            return Collections.emptyList();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Ignoring unreadable snapshot " + mFile, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Store the first {@link #MAX_PETS} of the given pets as the snapshot in the background.
+     * Nothing is written if they match the current snapshot.
+     */
+    void write(List<PetItem> pets) {
+        final List<PetItem> firstPets =
+                Collections.unmodifiableList(new ArrayList<>(
+                        pets.subList(0, Math.min(MAX_PETS, pets.size()))));
+        if (isSame(firstPets, mPets)) {
+            return;
+        }
+        mPets = firstPets;
+
+        WRITE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                File temp = new File(mFile.getPath() + ".tmp");
+                try {
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(temp)));
+                    try {
+                        out.writeInt(VERSION);
+                        out.writeInt(firstPets.size());
+                        for (PetItem pet : firstPets) {
+                            out.writeLong(pet.id);
+                            writeString(out, pet.name);
+                            writeString(out, pet.breed);
+                            writeString(out, pet.photo);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    if (!temp.renameTo(mFile)) {
+                        throw new IOException("Cannot rename " + temp + " to " + mFile);
+                    }
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to write snapshot " + mFile, e);
+                    temp.delete();
+                }
+            }
+        });
+    }
+
+    private static boolean isSame(List<PetItem> first, List<PetItem> second) {
+        if (first.size() != second.size()) {
+            return false;
+        }
+        for (int i = 0; i < first.size(); i++) {
+            if (first.get(i).id != second.get(i).id
+                    || !first.get(i).hasSameContent(second.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Strings are written with a leading flag, since writeUTF doesn't take null
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
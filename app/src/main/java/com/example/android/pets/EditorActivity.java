@@ -39,6 +39,7 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
@@ -46,6 +47,7 @@ import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
 import com.example.android.pets.data.PetProvider;
+import com.example.android.pets.data.PetRepository;
 
 import static android.R.id.input;
 import static android.icu.lang.UCharacter.GraphemeClusterBreak.L;
@@ -61,6 +63,12 @@ public class EditorActivity extends AppCompatActivity
     // unique loader id
     private static final int PET_LOADER = 1;
 
+    // request code of the image picker for the pet photo
+    private static final int PHOTO_REQUEST = 1;
+
+    // key of the picked, not yet saved photo in the saved instance state
+    private static final String STATE_PHOTO_URI = "photo_uri";
+
     // EditText field to enter the pet's name
     private EditText mNameEditText;
 
@@ -73,6 +81,12 @@ public class EditorActivity extends AppCompatActivity
     // EditText field to enter the pet's gender
     private Spinner mGenderSpinner;
 
+    // ImageView showing the pet's photo, a click picks a new one
+    private ImageView mPhotoImageView;
+
+    // Image picked as the new photo of the pet, null while the photo is unchanged
+    private Uri mPhotoUri;
+
     /**
      * Gender of the pet. The possible values are:
      * 0 for unknown gender, 1 for male, 2 for female.
@@ -111,9 +125,25 @@ public class EditorActivity extends AppCompatActivity
         mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
+        mPhotoImageView = (ImageView) findViewById(R.id.edit_pet_photo);
 
         setupSpinner();
 
+        mPhotoImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                pickPhoto();
+            }
+        });
+
+        // A photo picked before a configuration change is still to be saved
+        if (savedInstanceState != null) {
+            mPhotoUri = savedInstanceState.getParcelable(STATE_PHOTO_URI);
+        }
+        if (mPhotoUri != null) {
+            PetThumbnailLoader.getInstance(this).loadImage(mPhotoImageView, mPhotoUri);
+        }
+
         // examine the intent that was used to launch this activiy, on order to figure out
         // if we're creating a new pet or editing an existing one
         Intent intent = getIntent();
@@ -146,6 +176,36 @@ public class EditorActivity extends AppCompatActivity
         mGenderSpinner.setOnTouchListener(mTouchListener);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_PHOTO_URI, mPhotoUri);
+    }
+
+    // Let the user pick an image as the photo of the pet
+    private void pickPhoto() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("image/*");
+        startActivityForResult(intent, PHOTO_REQUEST);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != PHOTO_REQUEST) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+
+        // The photo is only stored along with the rest of the pet in savePet()
+        mPhotoUri = data.getData();
+        mPetHasChanged = true;
+        PetThumbnailLoader.getInstance(this).loadImage(mPhotoImageView, mPhotoUri);
+    }
+
     /**
      * Setup the dropdown spinner that allows the user to select the gender of the pet.
      */
@@ -189,17 +249,12 @@ public class EditorActivity extends AppCompatActivity
      *  Get the user input from editor and save new pet data into database.
      */
     private void savePet() {
-        // inserted row id
-        long newRowId = 0;
-        // number of updated rows
-        int updatedRows = 0;
-
         // -------- EditText fields validation ---------
         // retrieve data from nNameEditText
         String nameString = mNameEditText.getText().toString().trim();
 
         // if nameEditText is empty or null just finish the activity
-        if(TextUtils.isEmpty(nameString)) {
+        if(!PetEntry.isValidName(nameString)) {
             finish();
             return;
         }
@@ -216,7 +271,7 @@ public class EditorActivity extends AppCompatActivity
         if(!TextUtils.isEmpty(weightString)) {
             petWeight = Integer.parseInt(weightString);
 
-            if (petWeight < 0) {
+            if (!PetEntry.isValidWeight(petWeight)) {
                 Toast.makeText(this, R.string.toast_invalid_data, Toast.LENGTH_SHORT).show();
                 return;
             }
@@ -237,43 +292,64 @@ public class EditorActivity extends AppCompatActivity
         values.put(PetEntry.COLUMN_PET_GENDER, mGender);
         values.put(PetEntry.COLUMN_PET_WEIGHT, petWeight);
 
+        // The write runs in the background, the result is shown once it's done
+        final PetRepository petRepository = PetRepository.getInstance(this);
+
         // if it's add_mode -> insert pet
         if(ADD_MODE) {
             Log.d(LOG_TAG, "in ADD_MODE");
-            Uri mNewUri = getContentResolver().insert(
-                    PetEntry.CONTENT_URI,
-                    values
-            );
-
-            newRowId = ContentUris.parseId(mNewUri);
-
-            Log.d("new_inserted_row_id", String.valueOf(newRowId));
+            petRepository.insert(values, new PetRepository.Callback() {
+                @Override
+                public void onWriteFinished(Uri uri, int rowCount) {
+                    if (uri != null) {
+                        Log.d("new_inserted_row_id", String.valueOf(ContentUris.parseId(uri)));
+                        savePhoto(petRepository, uri);
+                    }
+                    showSaveResult(rowCount);
+                }
+            });
         } else {
             // otherwise it's edit_mode -> update pet
             Log.d(LOG_TAG, "in EDIT_MODE");
-            // Defines selection criteria for the rows you want to update
-            String mSelectionClause = PetEntry._ID + "=?";
-            int pet_id = (int) ContentUris.parseId(mCurrentPetUri);
-            String[] mSelectionArgs = {String.valueOf(pet_id)};
-
-            updatedRows = getContentResolver().update(
-                    PetEntry.CONTENT_URI,
-                    values,
-                    mSelectionClause,
-                    mSelectionArgs
-            );
-
-            Log.d("updated_rows_number", String.valueOf(updatedRows));
+            petRepository.update(mCurrentPetUri, values, new PetRepository.Callback() {
+                @Override
+                public void onWriteFinished(Uri uri, int rowCount) {
+                    Log.d("updated_rows_number", String.valueOf(rowCount));
+                    showSaveResult(rowCount);
+                }
+            });
+            // queued behind the update, the writes run in order
+            savePhoto(petRepository, mCurrentPetUri);
         }
+    }
+
+    // Queue storing the picked photo, if any, as the photo of the pet with the given URI
+    private void savePhoto(PetRepository petRepository, Uri petUri) {
+        if (mPhotoUri == null) {
+            return;
+        }
+        petRepository.savePhoto(petUri, mPhotoUri, new PetRepository.Callback() {
+            @Override
+            public void onWriteFinished(Uri uri, int rowCount) {
+                if (rowCount == 0) {
+                    Toast.makeText(getApplicationContext(), R.string.toast_error_saving_photo,
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
 
-        // Show a toast message depending on whether or not the insertion was successful
-        if(newRowId == -1 || updatedRows == -1) {
-            // If the row ID is -1, then there was an error with insertion.
-            Toast.makeText(this, R.string.toast_error_saving_pet, Toast.LENGTH_SHORT).show();
+    // Show a toast message depending on whether or not the pet was saved.
+    // Uses the application context, since the editor is usually closed by then.
+    private void showSaveResult(int rowCount) {
+        if(rowCount == 0) {
+            // If no row was written, then there was an error with saving.
+            Toast.makeText(getApplicationContext(), R.string.toast_error_saving_pet,
+                    Toast.LENGTH_SHORT).show();
         } else {
-            // Otherwise, the insertion was successful and we can display a toast with the row ID.
+            // Otherwise, the pet was saved and we can display a toast.
             Toast.makeText(
-                    this,
+                    getApplicationContext(),
                     R.string.toast_pet_saved,
                     Toast.LENGTH_SHORT
             ).show();
@@ -282,31 +358,28 @@ public class EditorActivity extends AppCompatActivity
 
     // Perform the deletion of the pet in the database.
     private void deletePet() {
-        // Defines a variable to contain the number of rows deleted
-        int mRowsDeleted = 0;
-
         if(mCurrentPetUri != null) {
-            // Deletes the words that match the selection criteria
-            mRowsDeleted = getContentResolver().delete(
-                    mCurrentPetUri, // the user dictionary content URI
-                    null,           // where (an SQL WHERE clause)
-                    null            // selectionArgs - the values that will be replaced in where clause
-            );
-        }
-
-        Log.d("deleted_rows_number", String.valueOf(mRowsDeleted));
-
-        // Show a toast message depending on whether or not the insertion was successful
-        if(mRowsDeleted == 0) {
-            // If the row ID is 0, then a user doesn't delete anything
-            Toast.makeText(this, R.string.editor_delete_pet_failed, Toast.LENGTH_SHORT).show();
-        } else {
-            // Otherwise, the deletion was successful and we can display a toast
-            Toast.makeText(
-                    this,
-                    R.string.editor_delete_pet_successful,
-                    Toast.LENGTH_SHORT
-            ).show();
+            // The deletion runs in the background and reports back when it's done
+            PetRepository.getInstance(this).delete(mCurrentPetUri, new PetRepository.Callback() {
+                @Override
+                public void onWriteFinished(Uri uri, int rowsDeleted) {
+                    Log.d("deleted_rows_number", String.valueOf(rowsDeleted));
+
+                    // Show a toast message depending on whether or not the deletion was successful
+                    if(rowsDeleted == 0) {
+                        // If the row count is 0, then a user doesn't delete anything
+                        Toast.makeText(getApplicationContext(), R.string.editor_delete_pet_failed,
+                                Toast.LENGTH_SHORT).show();
+                    } else {
+                        // Otherwise, the deletion was successful and we can display a toast
+                        Toast.makeText(
+                                getApplicationContext(),
+                                R.string.editor_delete_pet_successful,
+                                Toast.LENGTH_SHORT
+                        ).show();
+                    }
+                }
+            });
         }
 
         // Close the activity
@@ -388,7 +461,8 @@ public class EditorActivity extends AppCompatActivity
                 PetEntry.COLUMN_PET_NAME,
                 PetEntry.COLUMN_PET_BREED,
                 PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_PHOTO
         };
 
         // create and return a CursorLoader that will take care of
@@ -412,6 +486,7 @@ public class EditorActivity extends AppCompatActivity
             int breedColumnIndex = data.getColumnIndex(PetEntry.COLUMN_PET_BREED);
             int genderColumnIndex = data.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
             int weightColumnIndex = data.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+            int photoColumnIndex = data.getColumnIndex(PetEntry.COLUMN_PET_PHOTO);
 
             // Extract out the value from the Cursor for the given column index
             String petName = data.getString(nameColumnIndex);
@@ -432,6 +507,12 @@ public class EditorActivity extends AppCompatActivity
             mBreedEditText.setText(petBreed);
             mWeightEditText.setText(String.valueOf(petWeight));
 
+            // a freshly picked photo wins over the stored one until it's saved
+            if (mPhotoUri == null) {
+                PetThumbnailLoader.getInstance(this).loadPetPhoto(mPhotoImageView,
+                        ContentUris.parseId(mCurrentPetUri), data.getString(photoColumnIndex));
+            }
+
             // set the dropdown spinner to display the correct gender.
             switch(petGender) {
                 case PetEntry.GENDER_MALE:
@@ -453,6 +534,7 @@ public class EditorActivity extends AppCompatActivity
         mBreedEditText.setText("");
         mWeightEditText.setText("");
         mGenderSpinner.setSelection(0);
+        mPhotoImageView.setImageResource(R.drawable.thumbnail_placeholder);
     }
 
     // Show a dialog that warns the user there are unsaved changes that will be lost
@@ -0,0 +1,181 @@
+package com.example.android.pets;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * PetAdapter is a RecyclerView adapter for the list of pets. New lists of pets are compared with
+ * the current one on a background thread, keyed by the pet _ID, so only the rows which really
+ * changed are rebound and animated.
+ *
+ * Like the CursorAdapter it replaced, every row keeps its views in a view holder and the pets
+ * come with their columns already read, so binding a row does no view or column lookups.
+ */
+public class PetAdapter extends RecyclerView.Adapter<PetAdapter.PetViewHolder> {
+
+    /**
+     * Listener for clicks on a pet in the list.
+     */
+    public interface OnPetClickListener {
+        void onPetClick(long id);
+    }
+
+    // Single background thread computing the differences between two lists of pets
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final OnPetClickListener mClickListener;
+
+    // Loads the photo thumbnails off the main thread, binding never waits for a photo
+    private final PetThumbnailLoader mThumbnailLoader;
+
+    // pets currently shown, never modified in place
+    private List<PetItem> mPets = Collections.emptyList();
+
+    // Incremented with every new list, so a diff finishing after a newer list arrived is dropped
+    private int mGeneration;
+
+    public PetAdapter(PetThumbnailLoader thumbnailLoader, OnPetClickListener clickListener) {
+        mThumbnailLoader = thumbnailLoader;
+        mClickListener = clickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show a new list of pets. The differences to the current list are computed off the main
+     * thread and then dispatched as fine-grained change events.
+     */
+    public void submitList(final List<PetItem> newPets) {
+        final int generation = ++mGeneration;
+        final List<PetItem> oldPets = mPets;
+
+        // Nothing to compare, just replace the whole list
+        if (newPets == null || newPets.isEmpty() || oldPets.isEmpty()) {
+            mPets = newPets == null ? Collections.<PetItem>emptyList() : newPets;
+            notifyDataSetChanged();
+            return;
+        }
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result =
+                        DiffUtil.calculateDiff(new PetDiffCallback(oldPets, newPets));
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mPets = newPets;
+                        result.dispatchUpdatesTo(PetAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        PetItem pet = mPets.get(position);
+
+        // Populate fields with the pet attributes
+        holder.nameTextView.setText(pet.name);
+
+        // if pet breed is unknown, set 'Unknown breed' title instead of empty string
+        if (TextUtils.isEmpty(pet.breed)) {
+            holder.summaryTextView.setText(R.string.unknown_listview_breed_title_text);
+        } else {
+            // Otherwise, set user-entered breed
+            holder.summaryTextView.setText(pet.breed);
+        }
+
+        mThumbnailLoader.loadPetPhoto(holder.photoImageView, pet.id, pet.photo);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mPets.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mPets.get(position).id;
+    }
+
+    // Views of a single list item
+    class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView nameTextView;
+        final TextView summaryTextView;
+        final ImageView photoImageView;
+
+        PetViewHolder(View view) {
+            super(view);
+            photoImageView = (ImageView) view.findViewById(R.id.photo);
+            nameTextView = (TextView) view.findViewById(R.id.name);
+            summaryTextView = (TextView) view.findViewById(R.id.summary);
+            view.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mClickListener.onPetClick(mPets.get(position).id);
+            }
+        }
+    }
+
+    // Compares two lists of pets, pets are the same item if they have the same _ID
+    private static class PetDiffCallback extends DiffUtil.Callback {
+        private final List<PetItem> mOldPets;
+        private final List<PetItem> mNewPets;
+
+        PetDiffCallback(List<PetItem> oldPets, List<PetItem> newPets) {
+            mOldPets = oldPets;
+            mNewPets = newPets;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldPets.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewPets.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldPets.get(oldItemPosition).id == mNewPets.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldPets.get(oldItemPosition).hasSameContent(mNewPets.get(newItemPosition));
+        }
+    }
+}
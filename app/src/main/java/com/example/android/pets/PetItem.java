@@ -0,0 +1,30 @@
+package com.example.android.pets;
+
+import android.text.TextUtils;
+
+/**
+ * A pet as shown in the catalog list. Instances are immutable, so lists of them can be compared
+ * on a background thread while the list on screen keeps using them.
+ */
+public final class PetItem {
+
+    public final long id;
+    public final String name;
+    public final String breed;
+
+    // name of the photo file, null for pets without a photo
+    public final String photo;
+
+    public PetItem(long id, String name, String breed, String photo) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.photo = photo;
+    }
+
+    // true if the item shows the same content as the other item of the same pet
+    public boolean hasSameContent(PetItem other) {
+        return TextUtils.equals(name, other.name) && TextUtils.equals(breed, other.breed)
+                && TextUtils.equals(photo, other.photo);
+    }
+}
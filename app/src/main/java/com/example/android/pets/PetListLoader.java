@@ -0,0 +1,460 @@
+package com.example.android.pets;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.support.v4.content.AsyncTaskLoader;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Loads the pets for the catalog as a list of {@link PetItem}s, a page at a time. Unlike a
+ * CursorLoader the rows are read on the loader thread, so the list can be handed to the adapter
+ * without a cursor that may get closed under it.
+ *
+ * The loader holds a window of at most {@link #MAX_PAGES} pages. {@link #loadNextPage} and
+ * {@link #loadPreviousPage} query only the page they add, and drop a page at the other end of
+ * the window once it is full, so memory stays the same however far the user scrolls. The full
+ * list is paged by _ID with keyset queries, search results with offsets.
+ *
+ * A change of a single pet, notified through its own URI, only reads that pet again and patches
+ * it into its page, so editing a pet costs one row whatever the window holds. Changes of the
+ * whole table, and changes of pets while searching, reload the pages of the window.
+ */
+public class PetListLoader extends AsyncTaskLoader<PetListLoader.Result> {
+
+    /** Number of pets loaded with every page */
+    public static final int PAGE_SIZE = 50;
+
+    /** Largest number of pages held at once */
+    public static final int MAX_PAGES = 6;
+
+    // These are the pets columns that we will retrieve
+    private static final String[] PROJECTION = new String[] {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_PHOTO
+    };
+
+    /**
+     * Pets of the window of the loader.
+     */
+    public static final class Result {
+        /** Pets of all pages of the window, in list order */
+        public final List<PetItem> pets;
+
+        /** Whether there are pets before the window, or after it */
+        public final boolean hasPrevious;
+        public final boolean hasNext;
+
+        /** Whether the window starts with the first page of the list, read from its start */
+        public final boolean startsAtFirstPage;
+
+        Result(List<PetItem> pets, boolean hasPrevious, boolean hasNext,
+                boolean startsAtFirstPage) {
+            this.pets = pets;
+            this.hasPrevious = hasPrevious;
+            this.hasNext = hasNext;
+            this.startsAtFirstPage = startsAtFirstPage;
+        }
+    }
+
+    // A page of the window, its query and the queries of its neighbours, null at the ends
+    private static final class Page {
+        final Uri uri;
+        final List<PetItem> pets;
+        final Uri previousUri;
+        final Uri nextUri;
+
+        Page(Uri uri, List<PetItem> pets, Uri previousUri, Uri nextUri) {
+            this.uri = uri;
+            this.pets = pets;
+            this.previousUri = previousUri;
+            this.nextUri = nextUri;
+        }
+    }
+
+    // Observer that collects the changed pets and loads them
+    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long id = getPetId(uri);
+            synchronized (PetListLoader.this) {
+                if (id == -1 || mChangedIds.size() >= PAGE_SIZE) {
+                    mWindowChanged = true;
+                } else {
+                    mChangedIds.add(id);
+                }
+            }
+            onContentChanged();
+        }
+    };
+
+    // First page of the full list, null while searching
+    private final PetQuery mQuery;
+
+    // Search query of the loader, null for the full list
+    private final String mSearchQuery;
+
+    // Pages of the window in list order, only touched on the loader thread
+    private final List<Page> mPages = new ArrayList<>();
+
+    // Requests of the main thread, taken by the next load. Guarded by this.
+    private boolean mWantsNextPage;
+    private boolean mWantsPreviousPage;
+    private boolean mWindowChanged;
+    private final Set<Long> mChangedIds = new LinkedHashSet<>();
+
+    // last delivered result
+    private Result mResult;
+
+    // true while mObserver is registered with the content resolver
+    private boolean mObserving;
+
+    /**
+     * @param searchQuery words to search for, null to load all pets
+     */
+    public PetListLoader(Context context, String searchQuery) {
+        super(context);
+        mSearchQuery = searchQuery;
+        mQuery = searchQuery != null ? null : new PetQuery.Builder()
+                .sortBy(PetQuery.SORT_ID)
+                .limit(PAGE_SIZE)
+                .build();
+    }
+
+    /**
+     * Returns whether the loader searches the pets, rather than loading all of them.
+     */
+    public boolean isSearch() {
+        return mSearchQuery != null;
+    }
+
+    /**
+     * Add the page after the window, unless a load of it is already running.
+     */
+    public void loadNextPage() {
+        synchronized (this) {
+            if (mWantsNextPage) {
+                return;
+            }
+            mWantsNextPage = true;
+        }
+        onContentChanged();
+    }
+
+    /**
+     * Add the page before the window, unless a load of it is already running.
+     */
+    public void loadPreviousPage() {
+        synchronized (this) {
+            if (mWantsPreviousPage) {
+                return;
+            }
+            mWantsPreviousPage = true;
+        }
+        onContentChanged();
+    }
+
+    @Override
+    public Result loadInBackground() {
+        boolean wantsNextPage;
+        boolean wantsPreviousPage;
+        boolean windowChanged;
+        Long[] changedIds;
+        synchronized (this) {
+            wantsNextPage = mWantsNextPage;
+            wantsPreviousPage = mWantsPreviousPage;
+            windowChanged = mWindowChanged;
+            changedIds = mChangedIds.toArray(new Long[mChangedIds.size()]);
+            mWantsNextPage = false;
+            mWantsPreviousPage = false;
+            mWindowChanged = false;
+            mChangedIds.clear();
+        }
+
+        if (mPages.isEmpty()) {
+            mPages.add(loadPage(getFirstPageUri()));
+        } else if (windowChanged) {
+            reloadWindow();
+        } else {
+            for (long id : changedIds) {
+                updatePet(id);
+            }
+        }
+
+        Page last = mPages.get(mPages.size() - 1);
+        if (wantsNextPage && last.nextUri != null) {
+            mPages.add(loadPage(last.nextUri));
+            if (mPages.size() > MAX_PAGES) {
+                mPages.remove(0);
+            }
+        }
+        Page first = mPages.get(0);
+        if (wantsPreviousPage && first.previousUri != null) {
+            mPages.add(0, loadPage(first.previousUri));
+            if (mPages.size() > MAX_PAGES) {
+                mPages.remove(mPages.size() - 1);
+            }
+        }
+        return toResult();
+    }
+
+    // Load the pages of the window again, from the start of its first page
+    private void reloadWindow() {
+        reloadPages(0);
+    }
+
+    // Load the pages of the window from the start of the page at the given index on again,
+    // each one continuing after the page before it
+    private void reloadPages(int index) {
+        int pageCount = mPages.size();
+        Page page = loadPage(mPages.get(index).uri);
+        if (index == 0 && page.pets.isEmpty()) {
+            // All pets of the page are gone, there is no pet left to continue from
+            page = loadPage(getFirstPageUri());
+        }
+        mPages.subList(index, pageCount).clear();
+        mPages.add(page);
+        while (mPages.size() < pageCount && page.nextUri != null) {
+            page = loadPage(page.nextUri);
+            mPages.add(page);
+        }
+    }
+
+    /**
+     * Read the changed pet again and patch it into the window: replace it, or remove it if it
+     * was deleted. A new pet inside the window is read with its page, which then pushes its
+     * last pet on to the pages after it. Pets outside the window are read once the user
+     * scrolls to them.
+     */
+    private void updatePet(long id) {
+        PetItem pet = queryPet(id);
+
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            for (int position = 0; position < page.pets.size(); position++) {
+                if (page.pets.get(position).id != id) {
+                    continue;
+                }
+                if (mQuery == null) {
+                    // The change may move the pet in the ranking of the search
+                    mPages.set(i, loadPage(page.uri));
+                } else if (pet == null) {
+                    page.pets.remove(position);
+                } else {
+                    page.pets.set(position, pet);
+                }
+                return;
+            }
+        }
+
+        if (pet == null) {
+            return;
+        }
+        if (mQuery == null) {
+            // Any page of the search may match the new pet now
+            reloadWindow();
+            return;
+        }
+
+        // The full list is sorted by _ID, find the page the new pet belongs on
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            boolean lastPage = i == mPages.size() - 1;
+            boolean beforeEnd = !page.pets.isEmpty()
+                    && id < page.pets.get(page.pets.size() - 1).id;
+            if (beforeEnd || (lastPage && page.nextUri == null)) {
+                if (i == 0 && page.previousUri != null && !page.pets.isEmpty()
+                        && id < page.pets.get(0).id) {
+                    // The pet comes before the window
+                    return;
+                }
+                // Read the page again so it keeps to PAGE_SIZE, the pages after it continue
+                // from its new last pet
+                reloadPages(i);
+                return;
+            }
+        }
+    }
+
+    // Returns the pet with the given _ID as shown in the list, null if there is no such pet
+    private PetItem queryPet(long id) {
+        Cursor cursor = getContext().getContentResolver().query(
+                ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), PROJECTION, null, null,
+                null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            List<PetItem> pets = readPets(cursor);
+            return pets.isEmpty() ? null : pets.get(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the _ID of a single pet URI, -1 for any other URI
+    private static long getPetId(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !PetContract.PATH_PETS.equals(segments.get(0))
+                || !TextUtils.isDigitsOnly(segments.get(1))) {
+            return -1;
+        }
+        return ContentUris.parseId(uri);
+    }
+
+    private Uri getFirstPageUri() {
+        return mQuery != null ? mQuery.toUri() : getSearchPageUri(0);
+    }
+
+    private Uri getSearchPageUri(int offset) {
+        return PetEntry.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(PetContract.QUERY_PARAMETER_SEARCH, mSearchQuery)
+                .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE))
+                .appendQueryParameter(PetContract.QUERY_PARAMETER_OFFSET, String.valueOf(offset))
+                .build();
+    }
+
+    private static int getOffset(Uri uri) {
+        String offset = uri.getQueryParameter(PetContract.QUERY_PARAMETER_OFFSET);
+        return offset == null ? 0 : Integer.parseInt(offset);
+    }
+
+    // Query a single page and the queries of the pages next to it
+    private Page loadPage(Uri uri) {
+        Cursor cursor = getContext().getContentResolver().query(uri, PROJECTION, null, null, null);
+        if (cursor == null) {
+            return new Page(uri, new ArrayList<PetItem>(), null, null);
+        }
+
+        try {
+            List<PetItem> pets = readPets(cursor);
+
+            Uri previousUri;
+            Uri nextUri;
+            if (mQuery == null) {
+                int offset = getOffset(uri);
+                previousUri = offset == 0
+                        ? null
+                        : getSearchPageUri(Math.max(0, offset - PAGE_SIZE));
+                nextUri = pets.size() < PAGE_SIZE ? null : getSearchPageUri(offset + PAGE_SIZE);
+            } else {
+                // The pages next to this one continue from its own keys
+                PetQuery query = PetQuery.fromUri(uri);
+                previousUri = toUri(query.previousPage(cursor));
+                nextUri = toUri(query.nextPage(cursor));
+            }
+            return new Page(uri, pets, previousUri, nextUri);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Read the pets of the cursor, the list is patched when single pets change
+    private static List<PetItem> readPets(Cursor cursor) {
+        int idColumnIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+        int photoColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_PHOTO);
+
+        List<PetItem> pets = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            pets.add(new PetItem(
+                    cursor.getLong(idColumnIndex),
+                    cursor.getString(nameColumnIndex),
+                    cursor.getString(breedColumnIndex),
+                    cursor.getString(photoColumnIndex)));
+        }
+        return pets;
+    }
+
+    private static Uri toUri(PetQuery query) {
+        return query == null ? null : query.toUri();
+    }
+
+    // Join the pages of the window into one list for the adapter
+    private Result toResult() {
+        int count = 0;
+        for (Page page : mPages) {
+            count += page.pets.size();
+        }
+        List<PetItem> pets = new ArrayList<>(count);
+        for (Page page : mPages) {
+            pets.addAll(page.pets);
+        }
+        return new Result(Collections.unmodifiableList(pets),
+                mPages.get(0).previousUri != null,
+                mPages.get(mPages.size() - 1).nextUri != null,
+                mPages.get(0).uri.equals(getFirstPageUri()));
+    }
+
+    @Override
+    public void deliverResult(Result result) {
+        if (isReset()) {
+            return;
+        }
+        mResult = result;
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            // Watch the whole table, this also covers changes of single pets below it
+            getContext().getContentResolver().registerContentObserver(
+                    PetEntry.CONTENT_URI, true, mObserver);
+            mObserving = true;
+        }
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mResult = null;
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetPhotos;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads square thumbnails of pet photos into ImageViews. Thumbnails are looked up in memory,
+ * then on disk, and only then decoded from the photo, always off the main thread. Both caches
+ * drop the least recently used thumbnails first.
+ *
+ * Thumbnails are keyed by the photo file name, which changes with every new photo, so a cached
+ * thumbnail is never outdated. An ImageView reused for another pet before its thumbnail is
+ * ready simply ignores the late result.
+ */
+public class PetThumbnailLoader {
+
+    private static final String LOG_TAG = PetThumbnailLoader.class.getSimpleName();
+
+    // Directory below the cache directory holding the thumbnails
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    // Size of the disk cache, the oldest thumbnails are deleted beyond it
+    private static final long DISK_CACHE_SIZE = 20 * 1024 * 1024;
+
+    // JPEG quality of the thumbnails on disk
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    // Number of threads decoding thumbnails
+    private static final int DECODE_THREADS = 2;
+
+    private static PetThumbnailLoader sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final File mDiskCacheDirectory;
+    private final int mThumbnailSize;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Decoded thumbnails by key, sized in kilobytes
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    // The key each ImageView waits for, views showing a cached thumbnail aren't in here
+    private final Map<ImageView, String> mRequests =
+            Collections.synchronizedMap(new WeakHashMap<ImageView, String>());
+
+    private final Executor mExecutor = Executors.newFixedThreadPool(DECODE_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Stay out of the way of the UI thread while the user scrolls
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "PetThumbnailLoader");
+                }
+            });
+
+    private PetThumbnailLoader(Context context) {
+        mContentResolver = context.getContentResolver();
+        mDiskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+        mThumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+
+        // An eighth of the heap, enough for a few screens of thumbnails
+        int cacheSizeKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        mMemoryCache = new LruCache<String, Bitmap>(cacheSizeKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+    }
+
+    public static synchronized PetThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Show the thumbnail of the photo of the given pet in the view, or the placeholder while
+     * the thumbnail is loading and for pets without a photo.
+     *
+     * @param photo the {@link PetEntry#COLUMN_PET_PHOTO} of the pet
+     */
+    public void loadPetPhoto(ImageView view, long petId, String photo) {
+        if (photo == null) {
+            mRequests.remove(view);
+            view.setImageResource(R.drawable.thumbnail_placeholder);
+            return;
+        }
+        load(view, photo, PetEntry.buildPhotoUri(petId));
+    }
+
+    /**
+     * Show a thumbnail of any image, e.g. a photo the user just picked.
+     */
+    public void loadImage(ImageView view, Uri image) {
+        load(view, Uri.encode(image.toString()), image);
+    }
+
+    private void load(ImageView view, String key, Uri source) {
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            mRequests.remove(view);
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        // Skip the work if the view already waits for the same thumbnail
+        if (key.equals(mRequests.put(view, key))) {
+            return;
+        }
+        view.setImageResource(R.drawable.thumbnail_placeholder);
+        mExecutor.execute(new LoadTask(view, key, source));
+    }
+
+    // Returns true while the view still waits for the thumbnail with the given key
+    private boolean isWanted(ImageView view, String key) {
+        return view != null && key.equals(mRequests.get(view));
+    }
+
+    private Bitmap readDiskCache(String key) {
+        File file = new File(mDiskCacheDirectory, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap != null) {
+            // Marks the thumbnail as recently used for the trimming of the cache
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    private void writeDiskCache(String key, Bitmap bitmap) {
+        if (!mDiskCacheDirectory.isDirectory() && !mDiskCacheDirectory.mkdirs()) {
+            return;
+        }
+        File file = new File(mDiskCacheDirectory, key);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to cache thumbnail " + file, e);
+            file.delete();
+            return;
+        }
+        trimDiskCache();
+    }
+
+    // Delete the least recently used thumbnails until the cache fits its size
+    private synchronized void trimDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= DISK_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return Long.valueOf(first.lastModified()).compareTo(second.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && size > DISK_CACHE_SIZE; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    // Decode a thumbnail from the source image, cropped to a square in its middle
+    private Bitmap decodeThumbnail(Uri source) throws IOException {
+        Bitmap bitmap = PetPhotos.decodeSampled(mContentResolver, source, mThumbnailSize);
+        if (bitmap == null) {
+            return null;
+        }
+        return ThumbnailUtils.extractThumbnail(bitmap, mThumbnailSize, mThumbnailSize,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+    }
+
+    private class LoadTask implements Runnable {
+        private final WeakReference<ImageView> mView;
+        private final String mKey;
+        private final Uri mSource;
+
+        LoadTask(ImageView view, String key, Uri source) {
+            mView = new WeakReference<>(view);
+            mKey = key;
+            mSource = source;
+        }
+
+        @Override
+        public void run() {
+            // The view may have scrolled away and show another pet by now
+            if (!isWanted(mView.get(), mKey)) {
+                return;
+            }
+
+            Bitmap bitmap = mMemoryCache.get(mKey);
+            if (bitmap == null) {
+                bitmap = readDiskCache(mKey);
+            }
+            if (bitmap == null) {
+                try {
+                    bitmap = decodeThumbnail(mSource);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to load thumbnail of " + mSource, e);
+                } catch (SecurityException e) {
+                    Log.w(LOG_TAG, "No access to " + mSource, e);
+                }
+                if (bitmap == null) {
+                    // Keep the placeholder, a later bind of the view tries again
+                    ImageView view = mView.get();
+                    if (isWanted(view, mKey)) {
+                        mRequests.remove(view);
+                    }
+                    return;
+                }
+                writeDiskCache(mKey, bitmap);
+            }
+            mMemoryCache.put(mKey, bitmap);
+
+            final Bitmap thumbnail = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ImageView view = mView.get();
+                    if (isWanted(view, mKey)) {
+                        mRequests.remove(view);
+                        view.setImageBitmap(thumbnail);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.pets;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Measures the launch of an activity in stages: the database opened by the provider's warm-up,
+ * the cached snapshot handed to the list, the first frame and the first frame which shows the
+ * full list. Times count from the start of the process where the platform knows it (API 24+),
+ * from the creation of the activity otherwise.
+ *
+ * The results go to the log under this tag, and the full list is reported with
+ * {@link Activity#reportFullyDrawn()}, so it also shows as "Fully drawn" in the ActivityManager
+ * log next to the platform's own "Displayed" time.
+ */
+final class StartupTimer {
+
+    private static final String LOG_TAG = StartupTimer.class.getSimpleName();
+
+    private final Activity mActivity;
+
+    // SystemClock.uptimeMillis() at which the launch started
+    private final long mStart;
+
+    // SystemClock.uptimeMillis() at which the activity was created
+    private final long mCreated;
+
+    private boolean mListShown;
+
+    /**
+     * Start measuring, call at the start of onCreate.
+     */
+    StartupTimer(Activity activity) {
+        mActivity = activity;
+        mCreated = SystemClock.uptimeMillis();
+        mStart = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? Process.getStartUptimeMillis()
+                : mCreated;
+    }
+
+    /**
+     * Report the first frame once the content view is about to be drawn, call once the content
+     * view is set.
+     */
+    void watchFirstFrame() {
+        onNextFrame(new Runnable() {
+            @Override
+            public void run() {
+                log("first frame", SystemClock.uptimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Report the cached pets of the last launch, call once they are handed to the list.
+     */
+    void onSnapshotShown(int itemCount) {
+        log("snapshot of " + itemCount + " pets", SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Report the full list with the next frame, call when the list got its first live data.
+     * Later calls are ignored. The database is open by then, so its stage is reported as well.
+     */
+    void onListLoaded(final int itemCount) {
+        if (mListShown) {
+            return;
+        }
+        mListShown = true;
+
+        // The provider runs in this process, the call doesn't touch the database
+        Bundle warmUp = mActivity.getContentResolver().call(PetEntry.CONTENT_URI,
+                PetContract.METHOD_GET_WARM_UP, null, null);
+        if (warmUp != null && warmUp.getLong(PetContract.KEY_WARM_UP_UPTIME) != 0) {
+            log("database open (" + warmUp.getLong(PetContract.KEY_WARM_UP_MILLIS) +
+                    " ms warm-up)", warmUp.getLong(PetContract.KEY_WARM_UP_UPTIME));
+        }
+
+        onNextFrame(new Runnable() {
+            @Override
+            public void run() {
+                log("full list of " + itemCount + " pets", SystemClock.uptimeMillis());
+                mActivity.reportFullyDrawn();
+            }
+        });
+    }
+
+    // Run the action right before the next frame of the activity is drawn
+    private void onNextFrame(final Runnable action) {
+        final View decorView = mActivity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        action.run();
+                        return true;
+                    }
+                });
+    }
+
+    // Log a stage reached at the given SystemClock.uptimeMillis()
+    private void log(String stage, long uptime) {
+        Log.i(LOG_TAG, mActivity.getClass().getSimpleName() + " " + stage + " after " +
+                (uptime - mStart) + " ms (" + (uptime - mCreated) + " ms after onCreate)");
+    }
+}
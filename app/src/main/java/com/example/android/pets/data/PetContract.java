@@ -1,6 +1,7 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -15,8 +16,141 @@ public final class PetContract {
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_PETS = "pets";
 
+    /**
+     * Query parameters accepted on {@link PetEntry#CONTENT_URI} to read the pets a page at a time,
+     * e.g. content://com.example.android.pets/pets?limit=50&offset=100
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    public static final String QUERY_PARAMETER_OFFSET = "offset";
+
+    /**
+     * Query parameters on {@link PetEntry#CONTENT_URI} for sorting, filtering and keyset
+     * pagination. Build them with {@link PetQuery} instead of by hand.
+     */
+    public static final String QUERY_PARAMETER_SORT = "sort";
+    public static final String QUERY_PARAMETER_GENDER = "gender";
+    public static final String QUERY_PARAMETER_MIN_WEIGHT = "min_weight";
+    public static final String QUERY_PARAMETER_MAX_WEIGHT = "max_weight";
+    public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+    public static final String QUERY_PARAMETER_BEFORE_KEY = "before_key";
+    public static final String QUERY_PARAMETER_BEFORE_ID = "before_id";
+
+    /** Path and query parameter for full-text search, e.g. pets/search?q=lab */
+    public static final String PATH_SEARCH = "search";
+    public static final String QUERY_PARAMETER_SEARCH = "q";
+
+    /**
+     * Path and query parameter to export the whole pets table, e.g. pets/export?format=json.
+     * Open it with {@link ContentResolver#openInputStream}, the rows are streamed as they are
+     * read. CSV is the default format.
+     */
+    public static final String PATH_EXPORT = "export";
+    public static final String QUERY_PARAMETER_FORMAT = "format";
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSON = "json";
+
+    /**
+     * Path of the photo of a pet below its URI, e.g. pets/7/photo. Open it for reading to get
+     * the JPEG file, open it for writing to replace the photo. The new photo takes the place of
+     * the old one when the written file is closed.
+     */
+    public static final String PATH_PHOTO = "photo";
+
+    /**
+     * Query parameter marking a write of the sync engine, e.g. pets/7?caller_is_syncadapter=true.
+     * Writes of other callers mark the pets as changed for the next sync and keep tombstones of
+     * deleted pets, writes of the sync engine set the sync columns themselves. Add it with
+     * {@link #asSyncAdapter}.
+     */
+    public static final String QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER = "caller_is_syncadapter";
+
+    /** Path of the tombstones of deleted pets which the server still knows, pets/tombstones */
+    public static final String PATH_TOMBSTONES = "tombstones";
+
+    /**
+     * Path and query parameter of the change log of the pets, e.g. pets/changes?since=120
+     * returns the changes after sequence number 120, oldest first. Combine it with the limit
+     * parameter to read the log a page at a time. A consumer which fell behind further than the
+     * log reaches back gets a single {@link PetChangeEntry#OPERATION_RESYNC} row instead.
+     */
+    public static final String PATH_CHANGES = "changes";
+    public static final String QUERY_PARAMETER_SINCE = "since";
+
+    // The MIME types of the exported pets
+    public static final String MIME_TYPE_CSV = "text/csv";
+    public static final String MIME_TYPE_JSON = "application/json";
+
+    /** Path of the aggregate statistics of the pets, e.g. pets/stats/gender */
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_STATS_GENDER = "gender";
+    public static final String PATH_STATS_BREED = "breed";
+
+    /**
+     * Method for {@link android.content.ContentResolver#call} returning the hit and miss
+     * counters of the provider's cache of single pet rows, under the KEY_CACHE_* keys.
+     */
+    public static final String METHOD_GET_CACHE_STATS = "get_cache_stats";
+    public static final String KEY_CACHE_HITS = "hits";
+    public static final String KEY_CACHE_MISSES = "misses";
+    public static final String KEY_CACHE_SIZE = "size";
+    public static final String KEY_CACHE_MAX_SIZE = "max_size";
+
+    /**
+     * Method for {@link android.content.ContentResolver#call} returning the latencies of the
+     * provider calls since the start of the process. The result holds a bundle per operation
+     * and URI pattern, e.g. "query pets/#", with the KEY_METRICS_* values. Latencies are in
+     * microseconds. The same table is printed by
+     * adb shell dumpsys activity provider com.example.android.pets/.data.PetProvider
+     */
+    public static final String METHOD_GET_METRICS = "get_metrics";
+    public static final String METHOD_RESET_METRICS = "reset_metrics";
+    public static final String KEY_METRICS_COUNT = "count";
+    public static final String KEY_METRICS_ROWS = "rows";
+    public static final String KEY_METRICS_P50 = "p50_us";
+    public static final String KEY_METRICS_P90 = "p90_us";
+    public static final String KEY_METRICS_P99 = "p99_us";
+    public static final String KEY_METRICS_MAX = "max_us";
+
+    /**
+     * Method for {@link android.content.ContentResolver#call} returning when the provider's
+     * warm-up opened the database: KEY_WARM_UP_UPTIME is the SystemClock.uptimeMillis() at which
+     * it finished, 0 while it still runs or if it failed, and KEY_WARM_UP_MILLIS how long it took.
+     */
+    public static final String METHOD_GET_WARM_UP = "get_warm_up";
+    public static final String KEY_WARM_UP_UPTIME = "uptime";
+    public static final String KEY_WARM_UP_MILLIS = "duration_ms";
+
+    /**
+     * Methods for {@link android.content.ContentResolver#call} around the log of slow queries.
+     * The provider keeps the latest queries which ran longer than a threshold, with their query
+     * plan. METHOD_SET_SLOW_QUERY_THRESHOLD takes the threshold in milliseconds as its arg,
+     * METHOD_GET_SLOW_QUERIES returns the queries, oldest first, as a list of bundles under
+     * KEY_SLOW_QUERIES with the KEY_SLOW_QUERY_* values.
+     */
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+    public static final String METHOD_GET_SLOW_QUERIES = "get_slow_queries";
+    public static final String KEY_SLOW_QUERY_THRESHOLD = "threshold_ms";
+    public static final String KEY_SLOW_QUERIES = "slow_queries";
+    public static final String KEY_SLOW_QUERY_TIME = "time";
+    public static final String KEY_SLOW_QUERY_MILLIS = "duration_ms";
+    public static final String KEY_SLOW_QUERY_SQL = "sql";
+    public static final String KEY_SLOW_QUERY_ARGS = "args";
+    public static final String KEY_SLOW_QUERY_PLAN = "plan";
+    public static final String KEY_SLOW_QUERY_FULL_SCAN = "full_scan";
+
     private PetContract() {}
 
+    /**
+     * Returns the given URI marked as a write of the sync engine, see
+     * {@link #QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER}.
+     */
+    public static Uri asSyncAdapter(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, "true")
+                .build();
+    }
+
     // Inner class that defines the table contents
     public static abstract class PetEntry implements BaseColumns {
 
@@ -31,8 +165,31 @@ public final class PetContract {
         /** The content URI to access the pet data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI to search pets by name and breed. Every word of the query is matched
+         * as a prefix, pets whose name starts with the first word come first.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /** The content URI to stream an export of all pets, see {@link PetContract#PATH_EXPORT} */
+        public static final Uri CONTENT_EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
         public static final String TABLE_NAME = "pets";
 
+        /**
+         * Returns the URI of the photo of the pet with the given _ID, see
+         * {@link PetContract#PATH_PHOTO}.
+         */
+        public static Uri buildPhotoUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_PHOTO)
+                    .build();
+        }
+
+        // full-text index over the name and breed columns, kept in sync by triggers
+        public static final String FTS_TABLE_NAME = "pets_fts";
+
         // table columns
         public static final String _ID = BaseColumns._ID;
 
@@ -41,10 +198,404 @@ public final class PetContract {
         public static final String COLUMN_PET_GENDER = "gender";  // int
         public static final String COLUMN_PET_WEIGHT = "weight";  // int
 
+        /**
+         * Name of the photo file of the pet, null for pets without a photo. Set by the provider
+         * when a photo is written to {@link #buildPhotoUri}, it changes with every new photo.
+         * It can only be cleared by an update, which deletes the file as well.
+         */
+        public static final String COLUMN_PET_PHOTO = "photo";    // String
+
+        /**
+         * Columns of the sync with the shelter server. Only the sync engine writes them, the
+         * provider sets COLUMN_MODIFIED and COLUMN_DIRTY on every change by another caller.
+         */
+        public static final String COLUMN_REMOTE_ID = "remote_id";  // String, null until synced
+        public static final String COLUMN_MODIFIED = "modified";    // long, ms since the epoch
+        public static final String COLUMN_DIRTY = "dirty";          // int, 1 if not pushed yet
+
+        /** The MIME type of pet photos, they are always stored as JPEG. */
+        public static final String PHOTO_MIME_TYPE = "image/jpeg";
+
         // Possible values for the gender of animals.
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
+
+        /**
+         * Returns whether or not the given name can be saved, every pet needs a name.
+         * The editor and the CSV import both check new pets with these rules.
+         */
+        public static boolean isValidName(String name) {
+            return name != null && name.trim().length() > 0;
+        }
+
+        /**
+         * Returns whether or not the given gender is one of the GENDER_* values.
+         */
+        public static boolean isValidGender(int gender) {
+            return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
+        }
+
+        /**
+         * Returns whether or not the given weight can be saved, weights are never negative.
+         */
+        public static boolean isValidWeight(int weight) {
+            return weight >= 0;
+        }
+    }
+
+    /**
+     * Pets deleted on this device which the server still has to be told about, one row per
+     * remote id. The provider adds them, the sync engine removes them once they are pushed.
+     */
+    public static abstract class PetTombstoneEntry {
+
+        // The MIME type for a list of tombstones.
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                        PATH_TOMBSTONES;
+
+        /** The content URI of the tombstones, they can only be deleted by the sync engine */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_TOMBSTONES);
+
+        public static final String TABLE_NAME = "pet_tombstones";
+
+        public static final String COLUMN_REMOTE_ID = "remote_id";  // String
+        public static final String COLUMN_DELETED = "deleted";      // long, ms since the epoch
+    }
+
+    /**
+     * Append-only log of the inserts, updates and deletes of pets, filled by triggers. A consumer
+     * keeps the highest sequence number it has processed and asks for the changes after it,
+     * instead of reading the whole pets table after every change notification.
+     *
+     * The provider compacts the log from time to time down to the latest change of every pet,
+     * so a consumer may see only the last of several changes of a pet. Inserts and updates are
+     * therefore a hint to read the current pet, only deletes mean the pet is gone.
+     */
+    public static abstract class PetChangeEntry {
+
+        // The MIME type for a list of changes.
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+
+        /** The content URI of the change log, see {@link PetContract#PATH_CHANGES} */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_CHANGES);
+
+        public static final String TABLE_NAME = "pet_changes";
+
+        // Single row table with the highest sequence number compaction dropped for good
+        public static final String HORIZON_TABLE_NAME = "pet_changes_horizon";
+
+        public static final String COLUMN_SEQUENCE = "seq";           // long, never reused
+        public static final String COLUMN_PET_ID = "pet_id";          // long, _ID of the pet
+        public static final String COLUMN_OPERATION = "operation";    // String, OPERATION_*
+        public static final String COLUMN_CHANGED = "changed";        // long, ms since the epoch
+
+        // Possible values of the operation column
+        public static final String OPERATION_INSERT = "insert";
+        public static final String OPERATION_UPDATE = "update";
+        public static final String OPERATION_DELETE = "delete";
+
+        /**
+         * Only row of the answer when changes after the since parameter were dropped from the
+         * log. Read the pets table again, then continue with the sequence number of this row.
+         */
+        public static final String OPERATION_RESYNC = "resync";
+
+        /**
+         * Returns the URI of the changes after the given sequence number.
+         */
+        public static Uri buildChangesSinceUri(long since) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, String.valueOf(since))
+                    .build();
+        }
+    }
+
+    // Aggregate statistics of the pets, computed by the provider with GROUP BY queries
+    public static abstract class PetStatsEntry {
+
+        // The MIME type for a list of statistics rows.
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        private static final Uri CONTENT_STATS_URI =
+                Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_STATS);
+
+        /** Statistics per gender, one row per gender with COLUMN_PET_GENDER */
+        public static final Uri CONTENT_GENDER_URI =
+                Uri.withAppendedPath(CONTENT_STATS_URI, PATH_STATS_GENDER);
+
+        /** Statistics per breed, one row per breed with COLUMN_PET_BREED */
+        public static final Uri CONTENT_BREED_URI =
+                Uri.withAppendedPath(CONTENT_STATS_URI, PATH_STATS_BREED);
+
+        // columns of every statistics row, next to the column the pets are grouped by
+        public static final String COLUMN_COUNT = "count";                    // int
+        public static final String COLUMN_AVERAGE_WEIGHT = "average_weight";  // double
+    }
+
+    /**
+     * Typed query of the pets table: a sort order, filters by gender and weight range, and a
+     * page size. Pages are continued with {@link #nextPage}, which starts the next page after
+     * the last pet of the current one instead of skipping rows with an OFFSET, so deep pages
+     * cost as much as the first one. {@link #previousPage} goes back the same way, so a list can
+     * drop pages it scrolled past and load them again later.
+     *
+     * <pre>
+     * PetQuery query = new PetQuery.Builder()
+     *         .sortBy(PetQuery.SORT_NAME)
+     *         .gender(PetEntry.GENDER_FEMALE)
+     *         .weightBetween(2, 10)
+     *         .limit(50)
+     *         .build();
+     * Cursor page = resolver.query(query.toUri(), projection, null, null, null);
+     * Cursor nextPage = resolver.query(query.nextPage(page).toUri(), projection, null, null, null);
+     * </pre>
+     */
+    public static final class PetQuery {
+
+        // Possible sort orders, every order ends with the _ID so it is stable
+        public static final String SORT_ID = "id";
+        public static final String SORT_NAME = "name";
+        public static final String SORT_BREED = "breed";
+        public static final String SORT_WEIGHT = "weight";
+
+        private final String mSort;
+        private final Integer mGender;
+        private final Integer mMinWeight;
+        private final Integer mMaxWeight;
+        private final int mLimit;
+        private final boolean mHasAfter;
+        private final String mAfterKey;
+        private final long mAfterId;
+        private final boolean mHasBefore;
+        private final String mBeforeKey;
+        private final long mBeforeId;
+
+        private PetQuery(Builder builder) {
+            mSort = builder.mSort;
+            mGender = builder.mGender;
+            mMinWeight = builder.mMinWeight;
+            mMaxWeight = builder.mMaxWeight;
+            mLimit = builder.mLimit;
+            mHasAfter = builder.mHasAfter;
+            mAfterKey = builder.mAfterKey;
+            mAfterId = builder.mAfterId;
+            mHasBefore = builder.mHasBefore;
+            mBeforeKey = builder.mBeforeKey;
+            mBeforeId = builder.mBeforeId;
+        }
+
+        /**
+         * Returns the column a cursor of this query has to contain, next to the _ID,
+         * to continue with {@link #nextPage}.
+         */
+        public String getSortColumn() {
+            return getSortColumn(mSort);
+        }
+
+        /**
+         * Returns the query for the page after the given one. The cursor must hold the _ID and
+         * the sort column of the pets. Returns null if the page wasn't full, so there are no
+         * more pets.
+         */
+        public PetQuery nextPage(Cursor page) {
+            // A page before another one is followed by at least that page
+            boolean last = !mHasBefore && page.getCount() < mLimit;
+            if (mLimit == 0 || last || !page.moveToLast()) {
+                return null;
+            }
+
+            Builder builder = new Builder(this);
+            builder.mHasAfter = true;
+            builder.mAfterId = page.getLong(page.getColumnIndexOrThrow(PetEntry._ID));
+            builder.mAfterKey = getSortKey(page);
+            return builder.build();
+        }
+
+        /**
+         * Returns the query for the page before the given one, its pets come in the same order
+         * as on every other page. The cursor must hold the _ID and the sort column of the pets.
+         * Returns null if the page is the first one.
+         */
+        public PetQuery previousPage(Cursor page) {
+            boolean first = mHasBefore ? page.getCount() < mLimit : !mHasAfter;
+            if (mLimit == 0 || first || !page.moveToFirst()) {
+                return null;
+            }
+
+            Builder builder = new Builder(this);
+            builder.mHasBefore = true;
+            builder.mBeforeId = page.getLong(page.getColumnIndexOrThrow(PetEntry._ID));
+            builder.mBeforeKey = getSortKey(page);
+            return builder.build();
+        }
+
+        // Sort key of the current pet of the page, pages sorted by _ID only need the _ID
+        private String getSortKey(Cursor page) {
+            if (SORT_ID.equals(mSort)) {
+                return null;
+            }
+            return page.getString(page.getColumnIndexOrThrow(getSortColumn()));
+        }
+
+        /**
+         * Returns the query of a URI built by {@link #toUri()}, e.g. to continue from a page
+         * of which only the URI was kept.
+         *
+         * @throws IllegalArgumentException if the URI is not the URI of a query
+         */
+        public static PetQuery fromUri(Uri uri) {
+            String sort = uri.getQueryParameter(QUERY_PARAMETER_SORT);
+            if (sort == null) {
+                throw new IllegalArgumentException("No pet query " + uri);
+            }
+
+            Builder builder = new Builder().sortBy(sort);
+            String gender = uri.getQueryParameter(QUERY_PARAMETER_GENDER);
+            if (gender != null) {
+                builder.gender(Integer.parseInt(gender));
+            }
+            String minWeight = uri.getQueryParameter(QUERY_PARAMETER_MIN_WEIGHT);
+            String maxWeight = uri.getQueryParameter(QUERY_PARAMETER_MAX_WEIGHT);
+            if (minWeight != null) {
+                builder.mMinWeight = Integer.parseInt(minWeight);
+            }
+            if (maxWeight != null) {
+                builder.mMaxWeight = Integer.parseInt(maxWeight);
+            }
+            String afterId = uri.getQueryParameter(QUERY_PARAMETER_AFTER_ID);
+            if (afterId != null) {
+                builder.mHasAfter = true;
+                builder.mAfterId = Long.parseLong(afterId);
+                builder.mAfterKey = uri.getQueryParameter(QUERY_PARAMETER_AFTER_KEY);
+            }
+            String beforeId = uri.getQueryParameter(QUERY_PARAMETER_BEFORE_ID);
+            if (beforeId != null) {
+                builder.mHasBefore = true;
+                builder.mBeforeId = Long.parseLong(beforeId);
+                builder.mBeforeKey = uri.getQueryParameter(QUERY_PARAMETER_BEFORE_KEY);
+            }
+            String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+            if (limit != null) {
+                builder.limit(Integer.parseInt(limit));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the content URI of this query.
+         */
+        public Uri toUri() {
+            Uri.Builder uri = PetEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SORT, mSort);
+            if (mGender != null) {
+                uri.appendQueryParameter(QUERY_PARAMETER_GENDER, String.valueOf(mGender));
+            }
+            if (mMinWeight != null) {
+                uri.appendQueryParameter(QUERY_PARAMETER_MIN_WEIGHT, String.valueOf(mMinWeight));
+            }
+            if (mMaxWeight != null) {
+                uri.appendQueryParameter(QUERY_PARAMETER_MAX_WEIGHT, String.valueOf(mMaxWeight));
+            }
+            if (mHasAfter) {
+                // A missing key stands for a pet without a breed
+                if (mAfterKey != null) {
+                    uri.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, mAfterKey);
+                }
+                uri.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(mAfterId));
+            }
+            if (mHasBefore) {
+                if (mBeforeKey != null) {
+                    uri.appendQueryParameter(QUERY_PARAMETER_BEFORE_KEY, mBeforeKey);
+                }
+                uri.appendQueryParameter(QUERY_PARAMETER_BEFORE_ID, String.valueOf(mBeforeId));
+            }
+            if (mLimit > 0) {
+                uri.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(mLimit));
+            }
+            return uri.build();
+        }
+
+        /**
+         * Returns the pets column of the given sort order.
+         */
+        public static String getSortColumn(String sort) {
+            switch (sort) {
+                case SORT_ID:
+                    return PetEntry._ID;
+                case SORT_NAME:
+                    return PetEntry.COLUMN_PET_NAME;
+                case SORT_BREED:
+                    return PetEntry.COLUMN_PET_BREED;
+                case SORT_WEIGHT:
+                    return PetEntry.COLUMN_PET_WEIGHT;
+                default:
+                    throw new IllegalArgumentException("Unknown sort order " + sort);
+            }
+        }
+
+        public static final class Builder {
+            private String mSort = SORT_ID;
+            private Integer mGender;
+            private Integer mMinWeight;
+            private Integer mMaxWeight;
+            private int mLimit;
+            private boolean mHasAfter;
+            private String mAfterKey;
+            private long mAfterId;
+            private boolean mHasBefore;
+            private String mBeforeKey;
+            private long mBeforeId;
+
+            public Builder() {
+            }
+
+            private Builder(PetQuery query) {
+                mSort = query.mSort;
+                mGender = query.mGender;
+                mMinWeight = query.mMinWeight;
+                mMaxWeight = query.mMaxWeight;
+                mLimit = query.mLimit;
+            }
+
+            /** Sort by one of the SORT_* orders, SORT_ID by default */
+            public Builder sortBy(String sort) {
+                getSortColumn(sort);
+                mSort = sort;
+                return this;
+            }
+
+            /** Only pets of the given gender, one of the PetEntry.GENDER_* values */
+            public Builder gender(int gender) {
+                mGender = gender;
+                return this;
+            }
+
+            /** Only pets weighing between the given weights, both included */
+            public Builder weightBetween(int minWeight, int maxWeight) {
+                mMinWeight = minWeight;
+                mMaxWeight = maxWeight;
+                return this;
+            }
+
+            /** Number of pets per page, all pets if not set */
+            public Builder limit(int limit) {
+                if (limit < 0) {
+                    throw new IllegalArgumentException("Negative limit " + limit);
+                }
+                mLimit = limit;
+                return this;
+            }
+
+            public PetQuery build() {
+                return new PetQuery(this);
+            }
+        }
     }
 
 }
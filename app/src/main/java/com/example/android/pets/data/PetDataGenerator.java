@@ -0,0 +1,155 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Random;
+
+/**
+ * Generates made-up pets that look like the pets of a real shelter, to fill the database for
+ * load tests. A few names are far more common than the others, breeds come with the share they
+ * have in a shelter and weights spread around the typical weight of their breed. The same seed
+ * always gives the same pets, so runs can be compared.
+ */
+public class PetDataGenerator {
+
+    private static final String LOG_TAG = PetDataGenerator.class.getSimpleName();
+
+    // Number of pets inserted in one bulkInsert transaction
+    private static final int BATCH_SIZE = 5000;
+
+    // Most common names first
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Milo", "Molly",
+            "Buddy", "Bailey", "Rocky", "Coco", "Toby", "Sadie", "Oliver", "Lola", "Bear",
+            "Chloe", "Duke", "Stella", "Leo", "Zoe", "Tucker", "Penny", "Jack", "Rosie",
+            "Oscar", "Ruby", "Simba", "Nala", "Toto", "Ginger", "Shadow", "Pepper", "Smokey",
+            "Misty", "Winston", "Hazel", "Murphy", "Willow", "Bruno", "Cleo", "Jasper", "Maggie",
+            "Felix", "Sasha", "Rex", "Tiger", "Mittens"
+    };
+
+    // Breeds with their share of the pets and their typical weight in kg,
+    // a null breed is a pet of unknown breed
+    private static final Breed[] BREEDS = {
+            new Breed("Mixed", 20, 15),
+            new Breed("Labrador", 10, 32),
+            new Breed("Terrier", 8, 8),
+            new Breed("Pit Bull", 8, 25),
+            new Breed("German Shepherd", 6, 35),
+            new Breed("Chihuahua", 6, 2),
+            new Breed("Beagle", 5, 10),
+            new Breed("Boxer", 3, 28),
+            new Breed("Husky", 3, 23),
+            new Breed("Poodle", 3, 20),
+            new Breed("Bulldog", 2, 23),
+            new Breed("Dachshund", 2, 9),
+            new Breed("Tabby", 8, 5),
+            new Breed("Domestic Shorthair", 6, 4),
+            new Breed("Siamese", 2, 4),
+            new Breed("Maine Coon", 1, 7),
+            new Breed(null, 7, 10)
+    };
+
+    // Sum of the shares of all breeds
+    private static final int TOTAL_SHARE;
+
+    static {
+        int total = 0;
+        for (Breed breed : BREEDS) {
+            total += breed.share;
+        }
+        TOTAL_SHARE = total;
+    }
+
+    private final Random mRandom;
+
+    public PetDataGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Returns the values of the next made-up pet.
+     */
+    public ContentValues next() {
+        Breed breed = nextBreed();
+
+        // Weights vary by about a quarter around the typical weight of the breed
+        long weight = Math.round(breed.weight * (1 + mRandom.nextGaussian() * 0.25));
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, nextName());
+        values.put(PetEntry.COLUMN_PET_BREED, breed.name);
+        values.put(PetEntry.COLUMN_PET_GENDER, nextGender());
+        values.put(PetEntry.COLUMN_PET_WEIGHT, (int) Math.max(1, weight));
+        return values;
+    }
+
+    /**
+     * Returns a name with the same distribution as the names of the generated pets.
+     */
+    public String nextName() {
+        // Squaring the uniform value favours the names at the start of the list
+        double skewed = mRandom.nextDouble();
+        return NAMES[(int) (skewed * skewed * NAMES.length)];
+    }
+
+    /**
+     * Insert the given number of made-up pets in batches, one transaction per batch.
+     * Blocks until all pets are written, so never call it on the main thread.
+     *
+     * @return the number of pets inserted
+     */
+    public int insert(ContentResolver contentResolver, int count) {
+        long start = SystemClock.elapsedRealtime();
+
+        int inserted = 0;
+        while (inserted < count) {
+            ContentValues[] batch = new ContentValues[Math.min(BATCH_SIZE, count - inserted)];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = next();
+            }
+            inserted += contentResolver.bulkInsert(PetEntry.CONTENT_URI, batch);
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, "Generated " + inserted + " pets in " + elapsed + " ms (" +
+                inserted * 1000L / elapsed + " rows/sec)");
+        return inserted;
+    }
+
+    private Breed nextBreed() {
+        int share = mRandom.nextInt(TOTAL_SHARE);
+        for (Breed breed : BREEDS) {
+            share -= breed.share;
+            if (share < 0) {
+                return breed;
+            }
+        }
+        return BREEDS[BREEDS.length - 1];
+    }
+
+    // Almost every pet has a known gender, split evenly
+    private int nextGender() {
+        int value = mRandom.nextInt(100);
+        if (value < 6) {
+            return PetEntry.GENDER_UNKNOWN;
+        }
+        return value < 53 ? PetEntry.GENDER_MALE : PetEntry.GENDER_FEMALE;
+    }
+
+    private static final class Breed {
+        final String name;
+        final int share;
+        final int weight;
+
+        Breed(String name, int share, int weight) {
+            this.name = name;
+            this.share = share;
+            this.weight = weight;
+        }
+    }
+}
@@ -5,21 +5,43 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.PetChangeEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetTombstoneEntry;
 
+import java.util.Locale;
+
+import static com.example.android.pets.data.PetContract.PetEntry.FTS_TABLE_NAME;
 import static com.example.android.pets.data.PetContract.PetEntry.TABLE_NAME;
 
 public class PetDbHelper extends SQLiteOpenHelper {
 
     public static final String LOG_TAG = PetDbHelper.class.getSimpleName();
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 1;
+    // If you change the database schema, you must increment the database version
+    // and add a migration step for it to applyMigration().
+    private static final int DATABASE_VERSION = 8;
     // Name of the database file
-    private static final String DATABASE_NAME = "shelter.db";
+    static final String DATABASE_NAME = "shelter.db";
+
+    // Triggers appending to the change log, one per kind of write
+    static final String[] CHANGE_LOG_TRIGGERS = new String[] {
+            "pets_changes_after_insert",
+            "pets_changes_after_update",
+            "pets_changes_after_delete"
+    };
 
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // Open the pets schema in another database file, used by the benchmarks
+    PetDbHelper(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+
+        // With write-ahead logging SQLiteDatabase keeps a pool of read connections next to the
+        // single write connection, so queries of the catalog run while a long import writes
+        setWriteAheadLoggingEnabled(true);
     }
 
     // run automatically if shelter.db doesn't exist
@@ -36,13 +58,158 @@ public class PetDbHelper extends SQLiteOpenHelper {
 
         // create and initialize the schema using SQL statements
         db.execSQL(SQL_CREATE_ENTRY);
+
+        // The statement above creates the version 1 schema, bring it up to date
+        // with the same migration steps an existing database goes through
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
-    // update the database, drop the database table and recreate it
+    // update the database one version at a time, keeping the existing data
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Log.d(LOG_TAG, "Migrating database to version " + version);
+            applyMigration(db, version);
+        }
+    }
+
+    /**
+     * Apply the schema changes that turn the previous version of the database into the given
+     * version. Runs inside the upgrade transaction opened by SQLiteOpenHelper.
+     */
+    private static void applyMigration(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                // Indexes for filtering and sorting by name, breed and gender/weight
+                db.execSQL("CREATE INDEX IF NOT EXISTS pets_name_index ON " + TABLE_NAME +
+                        " (" + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE)");
+                db.execSQL("CREATE INDEX IF NOT EXISTS pets_breed_index ON " + TABLE_NAME +
+                        " (" + PetEntry.COLUMN_PET_BREED + ")");
+                db.execSQL("CREATE INDEX IF NOT EXISTS pets_gender_weight_index ON " + TABLE_NAME +
+                        " (" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ")");
+                break;
+            case 3:
+                createSearchIndex(db);
+                break;
+            case 4:
+                // Sorting all pets by weight, the (gender, weight) index only helps with a gender
+                db.execSQL("CREATE INDEX IF NOT EXISTS pets_weight_index ON " + TABLE_NAME +
+                        " (" + PetEntry.COLUMN_PET_WEIGHT + ")");
+                break;
+            case 5:
+                // Photos are files, the table only keeps their names
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                        PetEntry.COLUMN_PET_PHOTO + " TEXT");
+                break;
+            case 6:
+                createSyncSchema(db);
+                break;
+            case 7:
+                createChangeLog(db);
+                break;
+            case 8:
+                // Deletions expire from the change log, consumers behind them have to resync
+                db.execSQL("CREATE TABLE " + PetChangeEntry.HORIZON_TABLE_NAME + " (" +
+                        PetChangeEntry.COLUMN_SEQUENCE + " INTEGER NOT NULL)");
+                db.execSQL("INSERT INTO " + PetChangeEntry.HORIZON_TABLE_NAME + " VALUES (0)");
+                break;
+            default:
+                throw new IllegalStateException("No migration to database version " + version);
+        }
+    }
+
+    /**
+     * Add the columns and the tombstone table of the sync with the shelter server. Existing pets
+     * count as changed, so the first sync pushes them.
+     */
+    private static void createSyncSchema(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_REMOTE_ID + " TEXT");
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_MODIFIED + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + PetEntry.COLUMN_DIRTY + " = 1");
+
+        // Pulled pets are matched by their remote id, pushes read the dirty pets. SQLite allows
+        // any number of NULLs in a unique index, so pets which were never synced don't collide.
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS pets_remote_id_index ON " + TABLE_NAME +
+                " (" + PetEntry.COLUMN_REMOTE_ID + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS pets_dirty_index ON " + TABLE_NAME +
+                " (" + PetEntry.COLUMN_DIRTY + ")");
+
+        db.execSQL("CREATE TABLE " + PetTombstoneEntry.TABLE_NAME + " (" +
+                PetTombstoneEntry.COLUMN_REMOTE_ID + " TEXT PRIMARY KEY, " +
+                PetTombstoneEntry.COLUMN_DELETED + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Create the change log of the pets and the triggers which append to it. The log starts
+     * empty, consumers read the pets table once before they follow the log.
+     *
+     * Every written pet writes a row of the log as well, which about doubles the row writes of
+     * a bulk insert. The bulk_insert_change_log results of DataLayerBenchmark measure the cost.
+     */
+    private static void createChangeLog(SQLiteDatabase db) {
+        // AUTOINCREMENT, so a sequence number is never handed out twice even after compaction
+        db.execSQL("CREATE TABLE " + PetChangeEntry.TABLE_NAME + " (" +
+                PetChangeEntry.COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                PetChangeEntry.COLUMN_PET_ID + " INTEGER NOT NULL, " +
+                PetChangeEntry.COLUMN_OPERATION + " TEXT NOT NULL, " +
+                PetChangeEntry.COLUMN_CHANGED + " INTEGER NOT NULL)");
+
+        // Compaction finds the latest change of every pet from this index alone
+        db.execSQL("CREATE INDEX IF NOT EXISTS pet_changes_pet_index ON " +
+                PetChangeEntry.TABLE_NAME + " (" + PetChangeEntry.COLUMN_PET_ID + ", " +
+                PetChangeEntry.COLUMN_SEQUENCE + ")");
+
+        createChangeTrigger(db, "INSERT", "new", PetChangeEntry.OPERATION_INSERT);
+        createChangeTrigger(db, "UPDATE", "new", PetChangeEntry.OPERATION_UPDATE);
+        createChangeTrigger(db, "DELETE", "old", PetChangeEntry.OPERATION_DELETE);
+    }
+
+    // Log every row the given statement changes, row is "new" or "old" for the changed row
+    private static void createChangeTrigger(SQLiteDatabase db, String event, String row,
+                                            String operation) {
+        // Milliseconds since the epoch, SQLite's own time functions only count seconds
+        String now = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+        // The names end up in CHANGE_LOG_TRIGGERS
+        db.execSQL("CREATE TRIGGER pets_changes_after_" + event.toLowerCase(Locale.US) +
+                " AFTER " + event + " ON " + TABLE_NAME + " BEGIN " +
+                "INSERT INTO " + PetChangeEntry.TABLE_NAME + " (" +
+                PetChangeEntry.COLUMN_PET_ID + ", " + PetChangeEntry.COLUMN_OPERATION + ", " +
+                PetChangeEntry.COLUMN_CHANGED + ") VALUES (" + row + "." + PetEntry._ID + ", '" +
+                operation + "', " + now + "); END");
+    }
+
+    /**
+     * Create the FTS4 table for searching pets by name and breed. It stores only the index and
+     * reads the text from the pets table, triggers keep it up to date on every change.
+     * FTS5 isn't available in the SQLite versions shipped with our minSdk.
+     */
+    private static void createSearchIndex(SQLiteDatabase db) {
+        String ftsColumns = PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED;
+        String newValues = "new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME +
+                ", new." + PetEntry.COLUMN_PET_BREED;
+
+        db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4(" +
+                ftsColumns + ", content=\"" + TABLE_NAME + "\")");
+
+        // An external content index must drop the old text before the row itself changes
+        db.execSQL("CREATE TRIGGER pets_fts_before_update BEFORE UPDATE OF " + ftsColumns +
+                " ON " + TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END");
+        db.execSQL("CREATE TRIGGER pets_fts_before_delete BEFORE DELETE ON " + TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END");
+        db.execSQL("CREATE TRIGGER pets_fts_after_update AFTER UPDATE OF " + ftsColumns +
+                " ON " + TABLE_NAME + " BEGIN " +
+                "INSERT INTO " + FTS_TABLE_NAME + " (docid, " + ftsColumns + ") " +
+                "VALUES (" + newValues + "); END");
+        db.execSQL("CREATE TRIGGER pets_fts_after_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+                "INSERT INTO " + FTS_TABLE_NAME + " (docid, " + ftsColumns + ") " +
+                "VALUES (" + newValues + "); END");
 
-        // The database is still at version 1, so there's nothing to do be done here.
+        // Index the pets which already exist
+        db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (" + FTS_TABLE_NAME + ") VALUES ('rebuild')");
     }
 }
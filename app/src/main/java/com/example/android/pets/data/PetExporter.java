@@ -0,0 +1,167 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Streams the whole pets table into a pipe as CSV or JSON. The table is read in pages of
+ * {@link #PAGE_SIZE} pets by _ID, every page starting after the last exported pet, and the rows
+ * are written through a small fixed buffer. Memory stays the same whatever the size of the
+ * table, and pets deleted while the export runs can't shift the pages and drop other pets.
+ */
+final class PetExporter implements ContentProvider.PipeDataWriter<String> {
+
+    private static final String LOG_TAG = PetExporter.class.getSimpleName();
+
+    // Size of the buffer between the rows and the pipe
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // Number of pets read with every query
+    private static final int PAGE_SIZE = 500;
+
+    // Exported columns, in this order
+    private static final String[] COLUMNS = new String[] {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private final PetDbHelper mPetDbHelper;
+
+    PetExporter(PetDbHelper petDbHelper) {
+        mPetDbHelper = petDbHelper;
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, String format) {
+        long start = SystemClock.elapsedRealtime();
+        boolean json = PetContract.FORMAT_JSON.equals(format);
+        int rows = 0;
+
+        SQLiteDatabase database = mPetDbHelper.getReadableDatabase();
+        try {
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(output.getFileDescriptor()), "UTF-8"),
+                    BUFFER_SIZE);
+            try {
+                if (json) {
+                    writer.write('[');
+                } else {
+                    writeCsvHeader(writer);
+                }
+
+                long lastId = Long.MIN_VALUE;
+                int pageRows;
+                do {
+                    Cursor page = database.query(PetEntry.TABLE_NAME, COLUMNS,
+                            PetEntry._ID + ">?", new String[] {String.valueOf(lastId)},
+                            null, null, PetEntry._ID, String.valueOf(PAGE_SIZE));
+                    try {
+                        pageRows = page.getCount();
+                        while (page.moveToNext()) {
+                            if (json) {
+                                writeJsonRow(page, writer, rows == 0);
+                            } else {
+                                writeCsvRow(page, writer);
+                            }
+                            lastId = page.getLong(0);
+                            rows++;
+                        }
+                    } finally {
+                        page.close();
+                    }
+                } while (pageRows == PAGE_SIZE);
+
+                if (json) {
+                    writer.write("\n]\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            // Most likely the reader closed its end of the pipe
+            Log.w(LOG_TAG, "Export of " + uri + " stopped after " + rows + " rows", e);
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, "Exported " + rows + " pets as " + format + " in " + elapsed + " ms (" +
+                rows * 1000L / elapsed + " rows/sec)");
+    }
+
+    // Write the header line with the names of the columns
+    private static void writeCsvHeader(Writer writer) throws IOException {
+        for (int column = 0; column < COLUMNS.length; column++) {
+            if (column > 0) {
+                writer.write(',');
+            }
+            writer.write(COLUMNS[column]);
+        }
+        writer.write('\n');
+    }
+
+    // Write the line of the current pet of the cursor
+    private static void writeCsvRow(Cursor cursor, Writer writer) throws IOException {
+        for (int column = 0; column < COLUMNS.length; column++) {
+            if (column > 0) {
+                writer.write(',');
+            }
+            String value = cursor.getString(column);
+            if (value != null) {
+                writeCsvValue(value, writer);
+            }
+        }
+        writer.write('\n');
+    }
+
+    // Quote values containing separators, doubling the quotes inside them
+    private static void writeCsvValue(String value, Writer writer) throws IOException {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 &&
+                value.indexOf('\n') == -1 && value.indexOf('\r') == -1) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    // Write the object of the current pet of the cursor as an element of the JSON array
+    private static void writeJsonRow(Cursor cursor, Writer writer, boolean first)
+            throws IOException {
+        writer.write(first ? "\n{" : ",\n{");
+        for (int column = 0; column < COLUMNS.length; column++) {
+            if (column > 0) {
+                writer.write(',');
+            }
+            writer.write(JSONObject.quote(COLUMNS[column]));
+            writer.write(':');
+            if (cursor.isNull(column)) {
+                writer.write("null");
+            } else if (cursor.getType(column) == Cursor.FIELD_TYPE_INTEGER) {
+                writer.write(Long.toString(cursor.getLong(column)));
+            } else {
+                writer.write(JSONObject.quote(cursor.getString(column)));
+            }
+        }
+        writer.write('}');
+    }
+}
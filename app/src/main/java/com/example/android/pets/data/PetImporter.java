@@ -0,0 +1,493 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Imports pets from a CSV file into the {@link PetProvider}. The file needs a header line with
+ * a name column, breed, gender and weight columns are optional, other columns are ignored.
+ * Files written by the CSV export can be imported as they are.
+ *
+ * The import runs in two stages on their own threads: a parser which reads the file one record
+ * at a time and checks every pet against the rules of the editor, and a writer which inserts
+ * the valid pets in batches, one transaction per batch. The stages are joined by a small
+ * bounded queue, so a slow database holds the parser back instead of letting parsed rows pile
+ * up in memory.
+ *
+ * After each batch the number of records done is saved as a checkpoint. An import of the same
+ * file which failed or was cancelled continues after the last saved batch when it starts again.
+ */
+public class PetImporter {
+
+    private static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    /**
+     * Receives the progress of an import on the main thread. The counts include the pets of
+     * earlier runs over the same file.
+     */
+    public interface Listener {
+        /** Called after every batch written to the database. */
+        void onProgress(int imported, int rejected);
+
+        /** Called once the whole file was imported. */
+        void onFinished(int imported, int rejected);
+
+        /** Called when the file couldn't be read or written, the import can be resumed. */
+        void onFailed(int imported, int rejected, Exception e);
+    }
+
+    // Number of pets inserted in one transaction
+    private static final int BATCH_SIZE = 500;
+
+    // Number of parsed batches which may wait for the writer
+    private static final int QUEUE_CAPACITY = 4;
+
+    // Preferences holding the checkpoints, by source URI
+    private static final String PREFERENCES_NAME = "pet_import";
+    private static final String KEY_RECORDS = "records:";
+    private static final String KEY_IMPORTED = "imported:";
+    private static final String KEY_REJECTED = "rejected:";
+
+    // Number of rejected records logged with their reason
+    private static final int MAX_LOGGED_REJECTS = 10;
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mCheckpoints;
+    private final Uri mSource;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Batches from the parser to the writer
+    private final BlockingQueue<Batch> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    // Only used on the main thread
+    private Listener mListener;
+
+    private volatile boolean mCancelled;
+    private volatile boolean mRunning;
+
+    private Thread mParserThread;
+    private Thread mWriterThread;
+
+    // Number of rejected records logged so far, only used by the parser
+    private int mLoggedRejects;
+
+    public PetImporter(Context context, Uri source) {
+        mContentResolver = context.getContentResolver();
+        mCheckpoints = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mSource = source;
+    }
+
+    /**
+     * Start the import, continuing from the checkpoint of an earlier run over the same file.
+     */
+    public void start(Listener listener) {
+        if (mRunning) {
+            throw new IllegalStateException("Import of " + mSource + " already started");
+        }
+        mListener = listener;
+        mRunning = true;
+
+        final int records = mCheckpoints.getInt(KEY_RECORDS + mSource, 0);
+        final int imported = mCheckpoints.getInt(KEY_IMPORTED + mSource, 0);
+        final int rejected = mCheckpoints.getInt(KEY_REJECTED + mSource, 0);
+        if (records > 0) {
+            Log.i(LOG_TAG, "Resuming import of " + mSource + " after " + records + " records");
+        }
+
+        mParserThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                parse(records);
+            }
+        }, "PetImporter-parser");
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(imported, rejected);
+            }
+        }, "PetImporter-writer");
+        mParserThread.start();
+        mWriterThread.start();
+    }
+
+    /**
+     * Replace the listener, e.g. after a configuration change. Null drops the updates.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public Uri getSource() {
+        return mSource;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Stop the import after the batch being written. The checkpoint is kept, so starting the
+     * same file again continues where this import stopped.
+     */
+    public void cancel() {
+        mCancelled = true;
+        if (mParserThread != null) {
+            mParserThread.interrupt();
+            mWriterThread.interrupt();
+        }
+    }
+
+    // Parser stage: read the records after the checkpoint and queue them in batches
+    private void parse(int skipRecords) {
+        Reader reader = null;
+        try {
+            InputStream in = mContentResolver.openInputStream(mSource);
+            if (in == null) {
+                throw new FileNotFoundException("Cannot open " + mSource);
+            }
+            reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+
+            List<String> header = readRecord(reader);
+            if (header == null) {
+                throw new IOException("File is empty");
+            }
+            int[] columns = findColumns(header);
+
+            int record = 0;
+            List<ContentValues> pets = new ArrayList<>(BATCH_SIZE);
+            int rejected = 0;
+            List<String> values;
+            while (!mCancelled && (values = readRecord(reader)) != null) {
+                record++;
+                if (record <= skipRecords || isBlank(values)) {
+                    continue;
+                }
+
+                ContentValues pet = toPet(values, columns, record);
+                if (pet == null) {
+                    rejected++;
+                } else {
+                    pets.add(pet);
+                }
+
+                if (pets.size() == BATCH_SIZE) {
+                    mQueue.put(new Batch(pets, rejected, record));
+                    pets = new ArrayList<>(BATCH_SIZE);
+                    rejected = 0;
+                }
+            }
+            if (mCancelled) {
+                return;
+            }
+            mQueue.put(new Batch(pets, rejected, record));
+            mQueue.put(Batch.END);
+        } catch (InterruptedException e) {
+            // cancelled, or the writer failed
+        } catch (IOException e) {
+            stop(e);
+        } catch (RuntimeException e) {
+            stop(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close " + mSource, e);
+                }
+            }
+        }
+    }
+
+    // Hand the reason the parser stopped to the writer
+    private void stop(Exception e) {
+        try {
+            mQueue.put(new Batch(e));
+        } catch (InterruptedException ignored) {
+            // the writer is gone already
+        }
+    }
+
+    // Writer stage: insert the queued batches and save a checkpoint after each of them
+    private void write(int imported, int rejected) {
+        long start = SystemClock.elapsedRealtime();
+        int importedBefore = imported;
+        try {
+            while (true) {
+                Batch batch = mQueue.take();
+                if (batch.error != null) {
+                    fail(imported, rejected, batch.error);
+                    return;
+                }
+                if (batch == Batch.END) {
+                    break;
+                }
+
+                if (batch.pets.length > 0) {
+                    imported += mContentResolver.bulkInsert(PetEntry.CONTENT_URI, batch.pets);
+                }
+                rejected += batch.rejected;
+                saveCheckpoint(batch.lastRecord, imported, rejected);
+                postProgress(imported, rejected);
+            }
+        } catch (InterruptedException e) {
+            fail(imported, rejected, e);
+            return;
+        } catch (RuntimeException e) {
+            // stop the parser, it may be waiting for room in the queue
+            mParserThread.interrupt();
+            fail(imported, rejected, e);
+            return;
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, "Imported " + (imported - importedBefore) + " pets from " + mSource +
+                " in " + elapsed + " ms, " + rejected + " records rejected");
+
+        mCheckpoints.edit()
+                .remove(KEY_RECORDS + mSource)
+                .remove(KEY_IMPORTED + mSource)
+                .remove(KEY_REJECTED + mSource)
+                .commit();
+        postFinished(imported, rejected);
+    }
+
+    // Saved right after the batch was committed, so a resume never skips a pet. A crash
+    // between the two writes imports the last batch again.
+    private void saveCheckpoint(int records, int imported, int rejected) {
+        mCheckpoints.edit()
+                .putInt(KEY_RECORDS + mSource, records)
+                .putInt(KEY_IMPORTED + mSource, imported)
+                .putInt(KEY_REJECTED + mSource, rejected)
+                .commit();
+    }
+
+    private void fail(int imported, int rejected, Exception e) {
+        if (mCancelled) {
+            Log.i(LOG_TAG, "Import of " + mSource + " cancelled after " + imported + " pets");
+        } else {
+            Log.e(LOG_TAG, "Import of " + mSource + " failed after " + imported + " pets", e);
+        }
+        postFailed(imported, rejected, e);
+    }
+
+    private void postProgress(final int imported, final int rejected) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onProgress(imported, rejected);
+                }
+            }
+        });
+    }
+
+    private void postFinished(final int imported, final int rejected) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                if (mListener != null) {
+                    mListener.onFinished(imported, rejected);
+                }
+            }
+        });
+    }
+
+    private void postFailed(final int imported, final int rejected, final Exception e) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                if (mListener != null) {
+                    mListener.onFailed(imported, rejected, e);
+                }
+            }
+        });
+    }
+
+    // Returns the indexes of the name, breed, gender and weight columns, -1 for missing ones
+    private static int[] findColumns(List<String> header) throws IOException {
+        int[] columns = new int[] {-1, -1, -1, -1};
+        for (int i = 0; i < header.size(); i++) {
+            // a byte order mark may precede the first column
+            String column = header.get(i).replace("\uFEFF", "").trim().toLowerCase(Locale.US);
+            if (column.equals(PetEntry.COLUMN_PET_NAME)) {
+                columns[0] = i;
+            } else if (column.equals(PetEntry.COLUMN_PET_BREED)) {
+                columns[1] = i;
+            } else if (column.equals(PetEntry.COLUMN_PET_GENDER)) {
+                columns[2] = i;
+            } else if (column.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+                columns[3] = i;
+            }
+        }
+        if (columns[0] == -1) {
+            throw new IOException("No " + PetEntry.COLUMN_PET_NAME + " column in " + header);
+        }
+        return columns;
+    }
+
+    // Turn a record into the values of a new pet, null if the editor wouldn't save it
+    private ContentValues toPet(List<String> values, int[] columns, int record) {
+        String name = getValue(values, columns[0]);
+        if (!PetEntry.isValidName(name)) {
+            reject(record, "no name");
+            return null;
+        }
+
+        String genderString = getValue(values, columns[2]);
+        int gender = parseGender(genderString);
+        if (!PetEntry.isValidGender(gender)) {
+            reject(record, "invalid gender " + genderString);
+            return null;
+        }
+
+        String weightString = getValue(values, columns[3]);
+        int weight;
+        try {
+            weight = weightString.isEmpty() ? 0 : Integer.parseInt(weightString);
+        } catch (NumberFormatException e) {
+            weight = -1;
+        }
+        if (!PetEntry.isValidWeight(weight)) {
+            reject(record, "invalid weight " + weightString);
+            return null;
+        }
+
+        ContentValues pet = new ContentValues();
+        pet.put(PetEntry.COLUMN_PET_NAME, name);
+        pet.put(PetEntry.COLUMN_PET_BREED, getValue(values, columns[1]));
+        pet.put(PetEntry.COLUMN_PET_GENDER, gender);
+        pet.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return pet;
+    }
+
+    private void reject(int record, String reason) {
+        if (mLoggedRejects < MAX_LOGGED_REJECTS) {
+            mLoggedRejects++;
+            Log.w(LOG_TAG, "Rejected record " + record + ": " + reason);
+        }
+    }
+
+    // Genders are either the stored number or its name, missing ones are unknown
+    private static int parseGender(String gender) {
+        if (gender.isEmpty() || gender.equalsIgnoreCase("unknown")) {
+            return PetEntry.GENDER_UNKNOWN;
+        } else if (gender.equalsIgnoreCase("male")) {
+            return PetEntry.GENDER_MALE;
+        } else if (gender.equalsIgnoreCase("female")) {
+            return PetEntry.GENDER_FEMALE;
+        }
+        try {
+            return Integer.parseInt(gender);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Returns the trimmed value of a column, empty if the column or the value is missing
+    private static String getValue(List<String> values, int column) {
+        return column >= 0 && column < values.size() ? values.get(column).trim() : "";
+    }
+
+    private static boolean isBlank(List<String> values) {
+        return values.size() == 1 && values.get(0).trim().isEmpty();
+    }
+
+    /**
+     * Reads the next record, null at the end of the input. Quoted values may hold commas,
+     * line breaks and quotes written twice.
+     */
+    static List<String> readRecord(Reader reader) throws IOException {
+        int c = reader.read();
+        if (c == -1) {
+            return null;
+        }
+
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted value " + value);
+                } else if (c == '"') {
+                    int next = reader.read();
+                    if (next != '"') {
+                        quoted = false;
+                        c = next;
+                        continue;
+                    }
+                    value.append('"');
+                } else {
+                    value.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\n' || c == -1) {
+                break;
+            } else if (c != '\r') {
+                value.append((char) c);
+            }
+            c = reader.read();
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    // Pets parsed together and written in one transaction
+    private static final class Batch {
+
+        // Queued after the last batch of the file
+        static final Batch END = new Batch(new ArrayList<ContentValues>(), 0, 0);
+
+        final ContentValues[] pets;
+
+        // Records rejected since the previous batch
+        final int rejected;
+
+        // Number of records read up to the end of this batch
+        final int lastRecord;
+
+        // Reason the parser stopped, null for a batch of pets
+        final Exception error;
+
+        Batch(List<ContentValues> pets, int rejected, int lastRecord) {
+            this.pets = pets.toArray(new ContentValues[pets.size()]);
+            this.rejected = rejected;
+            this.lastRecord = lastRecord;
+            this.error = null;
+        }
+
+        Batch(Exception error) {
+            this.pets = new ContentValues[0];
+            this.rejected = 0;
+            this.lastRecord = 0;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Decoding of pet photos. Images are decoded at a fraction of their size right away, so a
+ * photo from a camera never needs its full size in memory. All methods block, never call them
+ * on the main thread.
+ */
+public final class PetPhotos {
+
+    /** Longest side of a stored photo in pixels, larger images are scaled down on save */
+    public static final int MAX_PHOTO_SIZE = 1280;
+
+    // JPEG quality of the stored photos
+    private static final int PHOTO_QUALITY = 85;
+
+    private PetPhotos() {}
+
+    /**
+     * Decode the image at the given URI, sampled down as far as possible while both sides stay
+     * at least as long as the given size. Returns null if the URI holds no image.
+     */
+    public static Bitmap decodeSampled(ContentResolver contentResolver, Uri uri, int minSize)
+            throws IOException {
+        // First pass only reads the dimensions of the image
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(contentResolver, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, minSize);
+        options.inJustDecodeBounds = false;
+        return decode(contentResolver, uri, options);
+    }
+
+    /**
+     * Copy the image at the given URI into the photo of a pet, scaled down to
+     * {@link #MAX_PHOTO_SIZE} and stored as JPEG.
+     *
+     * @return false if the URI holds no image
+     */
+    public static boolean savePhoto(ContentResolver contentResolver, Uri source, long petId)
+            throws IOException {
+        Bitmap bitmap = decodeSampled(contentResolver, source, MAX_PHOTO_SIZE);
+        if (bitmap == null) {
+            return false;
+        }
+
+        // Sampling only halves the size, scale the rest of the way
+        float scale = (float) MAX_PHOTO_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.round(bitmap.getWidth() * scale),
+                    Math.round(bitmap.getHeight() * scale), true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        OutputStream out = contentResolver.openOutputStream(
+                PetContract.PetEntry.buildPhotoUri(petId), "w");
+        if (out == null) {
+            throw new IOException("Cannot write the photo of pet " + petId);
+        }
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, PHOTO_QUALITY, out);
+        } finally {
+            // Closing the file hands the new photo over to the pet
+            out.close();
+            bitmap.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the largest power of two by which an image of the given size can be sampled
+     * down while both sides stay at least as long as the given size.
+     */
+    public static int calculateInSampleSize(int width, int height, int minSize) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= minSize && height / (inSampleSize * 2) >= minSize) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static Bitmap decode(ContentResolver contentResolver, Uri uri,
+                                 BitmapFactory.Options options) throws IOException {
+        InputStream in = contentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
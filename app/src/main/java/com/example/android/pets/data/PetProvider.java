@@ -1,15 +1,50 @@
 package com.example.android.pets.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetTombstoneEntry;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.R.attr.data;
 import static android.R.attr.name;
@@ -27,6 +62,25 @@ public class PetProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int PET_ID = 101;
 
+    /** URI matcher code for the content URI to search the pets table */
+    private static final int PETS_SEARCH = 102;
+
+    /** URI matcher codes for the content URIs of the pet statistics per gender and per breed */
+    private static final int PETS_STATS_GENDER = 103;
+    private static final int PETS_STATS_BREED = 104;
+
+    /** URI matcher code for the content URI to export the pets table */
+    private static final int PETS_EXPORT = 105;
+
+    /** URI matcher code for the content URI of the photo of a single pet */
+    private static final int PET_PHOTO = 106;
+
+    /** URI matcher code for the content URI of the tombstones of deleted pets */
+    private static final int PET_TOMBSTONES = 107;
+
+    /** URI matcher code for the content URI of the change log of the pets */
+    private static final int PET_CHANGES = 108;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -43,25 +97,207 @@ public class PetProvider extends ContentProvider {
         // TODO: Add 2 content URIs to URI matcher
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH, PETS_SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" +
+                PetContract.PATH_STATS + "/" + PetContract.PATH_STATS_GENDER, PETS_STATS_GENDER);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" +
+                PetContract.PATH_STATS + "/" + PetContract.PATH_STATS_BREED, PETS_STATS_BREED);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT, PETS_EXPORT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO, PET_PHOTO);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_TOMBSTONES, PET_TOMBSTONES);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, PET_CHANGES);
     }
 
+    /**
+     * Largest number of pets a write notifies one by one. Changes of more pets are sent as
+     * a single notification of the whole table.
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 20;
+
     /** Tag for the log messages */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
     // Database helper object
     private PetDbHelper mPetDbHelper;
 
+    // Name of the database file behind the provider
+    private final String mDatabaseName;
+
+    public PetProvider() {
+        this(PetDbHelper.DATABASE_NAME);
+    }
+
+    // Run the provider on another database file, used by the benchmarks
+    PetProvider(String databaseName) {
+        mDatabaseName = databaseName;
+    }
+
     /**
-     * Initialize the provider and the database helper object.
+     * URIs changed by the batch running on the current thread. It is null when no batch is
+     * running, in which case notifications are sent right away.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
+    /** Number of single pet rows kept in {@link #mRowCache} */
+    private static final int ROW_CACHE_SIZE = 100;
+
+    // Recently read pet rows, answers queries of single pets
+    private final PetRowCache mRowCache = new PetRowCache(ROW_CACHE_SIZE);
+
+    // Results of the statistics queries, dropped on every write
+    private final PetStatsCache mStatsCache = new PetStatsCache();
+
+    /** Number of compiled statements kept in {@link #mStatementCache} */
+    private static final int STATEMENT_CACHE_SIZE = 16;
+
+    // Compiled insert, update and delete statements, created with the writable database
+    private PetStatementCache mStatementCache;
+
+    // Latencies of the provider calls
+    private final PetProviderMetrics mMetrics = new PetProviderMetrics();
+
+    // Latest queries which took longer than the slow query threshold
+    private final PetSlowQueryLog mSlowQueries = new PetSlowQueryLog();
+
+    // Columns only the sync engine writes
+    private static final String[] SYNC_COLUMNS = new String[] {
+            PetEntry.COLUMN_REMOTE_ID,
+            PetEntry.COLUMN_MODIFIED,
+            PetEntry.COLUMN_DIRTY
+    };
+
+    // Columns the server keeps as well, a change of them has to be pushed
+    private static final String[] SYNCED_COLUMNS = new String[] {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    // Name of the directory below the files directory holding the photos of the pets
+    private static final String PHOTO_DIRECTORY = "photos";
+
+    // Hands written photos over to their pets once the writer closes the file
+    private Handler mPhotoHandler;
+
+    // Minimum time between two compactions of the change log, in ms
+    private static final long COMPACTION_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    // Time a deletion stays in the change log, in ms. Consumers further behind have to resync.
+    private static final long DELETE_RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    // Time shutdown() waits for the background work to stop, in seconds
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    // Runs the housekeeping of the provider off the threads of the callers, shut down with it
+    private final ScheduledExecutorService mBackgroundExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "PetProvider-background");
+                }
+            });
+
+    // SystemClock.elapsedRealtime() of the last compaction, 0 before the first one
+    private final AtomicLong mLastCompaction = new AtomicLong();
+
+    // Warm-up of the database started by onCreate, queries wait for it to finish
+    private volatile Future<?> mWarmUp;
+
+    // SystemClock.uptimeMillis() at which the warm-up finished and how long it took, in ms.
+    // The finish is 0 until then or if it failed.
+    private volatile long mWarmUpUptime;
+    private volatile long mWarmUpMillis;
+
+    /**
+     * Initialize the provider and the database helper object. Runs on the main thread while the
+     * app starts, so the database itself is opened in the background.
      */
     @Override
     public boolean onCreate() {
-        // TODO: Create and initialize a PetDbHelper object to gain access to the pets database.
-        // Make sure the variable is a global variable, so it can be referenced from other
-        // ContentProvider methods.
-        mPetDbHelper = new PetDbHelper(getContext());
+        // Creating the helper doesn't touch the database file yet
+        mPetDbHelper = new PetDbHelper(getContext(), mDatabaseName);
+        warmUpDatabase();
         return true;
     }
 
+    /**
+     * Open the database, and create or upgrade it, on the background executor while the first
+     * activity is still being created. Queries wait for the warm-up to finish, so the first
+     * query of the catalog finds the connection open instead of racing the warm-up for it.
+     */
+    private void warmUpDatabase() {
+        mWarmUp = mBackgroundExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    // Reading from the schema table loads the schema, compiling the statements
+                    // prepares the writes of the editor
+                    DatabaseUtils.longForQuery(mPetDbHelper.getWritableDatabase(),
+                            "SELECT COUNT(*) FROM sqlite_master", null);
+                    getStatementCache();
+                } catch (SQLException e) {
+                    // The first call of a caller opens the database again and gets the error
+                    Log.e(LOG_TAG, "Failed to open the database " + mDatabaseName, e);
+                    return;
+                }
+                mMetrics.record(PetProviderMetrics.OPEN_DATABASE, mDatabaseName, start, 0);
+                mWarmUpMillis = (System.nanoTime() - start) / 1000000;
+                mWarmUpUptime = SystemClock.uptimeMillis();
+                Log.i(LOG_TAG, "Opened the database in " + mWarmUpMillis + " ms");
+            }
+        });
+    }
+
+    // Block until the warm-up of the database finished, right away once it did
+    private void awaitWarmUp() {
+        Future<?> warmUp = mWarmUp;
+        if (warmUp == null || warmUp.isDone()) {
+            return;
+        }
+        try {
+            warmUp.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The warm-up logs its own failures, the query opens the database itself
+        }
+    }
+
+    /**
+     * Stop the threads of the provider and close its database. Only called by the benchmarks
+     * and tests, the system never shuts down a provider.
+     */
+    @Override
+    public void shutdown() {
+        // Photos already written are handed over to their pets before the thread ends
+        Looper photoLooper;
+        synchronized (this) {
+            photoLooper = mPhotoHandler != null ? mPhotoHandler.getLooper() : null;
+            mPhotoHandler = null;
+        }
+        if (photoLooper != null) {
+            photoLooper.quitSafely();
+        }
+
+        // A compaction which already started finishes its transaction first
+        mBackgroundExecutor.shutdownNow();
+        try {
+            mBackgroundExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (photoLooper != null) {
+                photoLooper.getThread().join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SECONDS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mPetDbHelper.close();
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection, selection arguments,
      * and sort order.
@@ -74,6 +310,8 @@ public class PetProvider extends ContentProvider {
             String[] selectionArgs,
             String sortOrder) {
 
+        long start = System.nanoTime();
+        awaitWarmUp();
         SQLiteDatabase database = mPetDbHelper.getReadableDatabase();
 
         Cursor cursor;
@@ -83,33 +321,48 @@ public class PetProvider extends ContentProvider {
         switch (match) {
             // If the incoming URI was for all of "pets" table
             case PETS:
-                // Perform database query on pets table
-                cursor = database.query(
-                        PetEntry.TABLE_NAME,
+                // A PetQuery URI brings its own filters, sort order and keyset page start
+                if (PetQuerySql.isPetQuery(uri)) {
+                    PetQuerySql petQuery = PetQuerySql.fromUri(uri, selection, selectionArgs);
+                    selection = petQuery.selection;
+                    selectionArgs = petQuery.selectionArgs;
+                    sortOrder = petQuery.sortOrder;
+                }
+
+                // Perform database query on pets table, limited to one page if the URI asks so
+                cursor = queryTable(
+                        database,
                         projection,
                         selection,
                         selectionArgs,
                         null,
-                        null,
-                        sortOrder
+                        sortOrder,
+                        getLimit(uri)
                 );
                 break;
             // If the incoming URI was for the single row
             case PET_ID:
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-
-                // Perform a query on the pets table where the specified _id to return a
-                // Cursor containing that row of the table.
-                cursor = database.query(
-                        PetEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
+                cursor = queryPet(database, ContentUris.parseId(uri), projection);
+                break;
+            // If the incoming URI was a search by name and breed
+            case PETS_SEARCH:
+                cursor = searchPets(database, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            // If the incoming URI was for statistics of the pets
+            case PETS_STATS_GENDER:
+                cursor = queryStats(database, match, PetEntry.COLUMN_PET_GENDER, projection);
+                break;
+            case PETS_STATS_BREED:
+                cursor = queryStats(database, match, PetEntry.COLUMN_PET_BREED, projection);
+                break;
+            // If the incoming URI was for the change log, after a sequence number
+            case PET_CHANGES:
+                cursor = queryChanges(database, uri, projection, selection, selectionArgs);
+                break;
+            // If the incoming URI was for the tombstones, only read by the sync engine
+            case PET_TOMBSTONES:
+                cursor = database.query(PetTombstoneEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder, getLimit(uri));
                 break;
             default:
                 // If the URI is not recognized, you should do some error handling here.
@@ -117,25 +370,467 @@ public class PetProvider extends ContentProvider {
         }
 
         // Set the notification URI on the cursor. If the data at this URI changes, then we need to
-        // update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // update the Cursor. Search results and statistics change with any pet, so they watch
+        // the whole table.
+        Uri notificationUri = match == PETS || match == PET_ID ? uri : PetEntry.CONTENT_URI;
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
+        // Counting runs the query, so the recorded time includes reading the first rows
+        mMetrics.record(PetProviderMetrics.QUERY, getUriName(match), start, cursor.getCount());
         return cursor;
     }
 
+    /**
+     * Query the single pet with the given _ID. Recently read pets are answered from the row
+     * cache, other pets are read with all cached columns and stored in the cache.
+     */
+    private Cursor queryPet(SQLiteDatabase database, long id, String[] projection) {
+        String selection = PetEntry._ID + "=?";
+        String[] selectionArgs = new String[] {String.valueOf(id)};
+
+        // Perform a query on the pets table where the specified _id to return a
+        // Cursor containing that row of the table.
+        if (!PetRowCache.canServe(projection)) {
+            return queryTable(database, projection, selection, selectionArgs, null, null, null);
+        }
+
+        Cursor cached = mRowCache.get(id, projection);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Take the generation before reading, so a write racing with the read can't leave
+        // an outdated row in the cache
+        long generation = mRowCache.generation();
+        Cursor cursor = queryTable(database, PetRowCache.COLUMNS, selection, selectionArgs,
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return new MatrixCursor(projection == null ? PetRowCache.COLUMNS : projection, 0);
+            }
+            return mRowCache.put(id, cursor, generation, projection);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Count the pets and average their weight per value of the given column. Results are
+     * cached until the next write, so repeated queries don't scan the table.
+     */
+    private Cursor queryStats(SQLiteDatabase database, int code, String groupColumn,
+                              String[] projection) {
+        Cursor cached = mStatsCache.get(code, projection);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Take the generation before computing, so a write racing with the query can't leave
+        // an outdated result in the cache
+        long generation = mStatsCache.generation();
+        Cursor cursor = queryTable(
+                database,
+                new String[] {
+                        groupColumn,
+                        "COUNT(*) AS " + PetContract.PetStatsEntry.COLUMN_COUNT,
+                        "AVG(" + PetEntry.COLUMN_PET_WEIGHT + ") AS " +
+                                PetContract.PetStatsEntry.COLUMN_AVERAGE_WEIGHT
+                },
+                null,
+                null,
+                groupColumn,
+                groupColumn,
+                null
+        );
+        try {
+            return mStatsCache.put(code, cursor, generation, projection);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Search pets through the full-text index. Every word of the query is matched as a prefix
+     * of a word in the name or breed. Unless the caller asks for another order, pets whose name
+     * starts with the first word come first, then the rest by name.
+     */
+    private Cursor searchPets(SQLiteDatabase database, Uri uri, String[] projection,
+                              String selection, String[] selectionArgs, String sortOrder) {
+        String[] words = getSearchWords(uri);
+
+        // An empty search shows every pet
+        if (words.length == 0) {
+            return queryTable(database, projection, selection, selectionArgs, null, sortOrder,
+                    getLimit(uri));
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            match.append(word).append("* ");
+        }
+
+        String searchSelection = PetEntry._ID + " IN (SELECT docid FROM " + PetEntry.FTS_TABLE_NAME +
+                " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH ?)";
+        String[] searchArgs = new String[] {match.toString().trim()};
+
+        if (!TextUtils.isEmpty(selection)) {
+            searchSelection = searchSelection + " AND (" + selection + ")";
+            searchArgs = concat(searchArgs, selectionArgs);
+        }
+
+        if (TextUtils.isEmpty(sortOrder)) {
+            sortOrder = "(" + PetEntry.COLUMN_PET_NAME + " LIKE " +
+                    DatabaseUtils.sqlEscapeString(words[0] + "%") + ") DESC, " +
+                    PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE";
+        }
+
+        return queryTable(database, projection, searchSelection, searchArgs, null, sortOrder,
+                getLimit(uri));
+    }
+
+    /**
+     * Query the pets table. A query which runs longer than the slow query threshold is kept
+     * in the slow query log, together with its query plan.
+     */
+    private Cursor queryTable(SQLiteDatabase database, String[] columns, String selection,
+                              String[] selectionArgs, String groupBy, String orderBy,
+                              String limit) {
+        long start = System.nanoTime();
+        Cursor cursor = database.query(PetEntry.TABLE_NAME, columns, selection, selectionArgs,
+                groupBy, null, orderBy, limit);
+
+        // The query only runs once the cursor is read, counting makes it run here
+        cursor.getCount();
+
+        long elapsed = System.nanoTime() - start;
+        if (mSlowQueries.isSlow(elapsed)) {
+            String sql = SQLiteQueryBuilder.buildQueryString(false, PetEntry.TABLE_NAME, columns,
+                    selection, groupBy, null, orderBy, limit);
+            mSlowQueries.add(sql, selectionArgs, elapsed,
+                    explainQueryPlan(database, sql, selectionArgs));
+        }
+        return cursor;
+    }
+
+    // Returns the detail lines of EXPLAIN QUERY PLAN for the given query, one per line
+    private static String explainQueryPlan(SQLiteDatabase database, String sql,
+                                           String[] selectionArgs) {
+        Cursor plan = null;
+        try {
+            plan = database.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+            int detailColumn = plan.getColumnIndexOrThrow("detail");
+            StringBuilder detail = new StringBuilder();
+            while (plan.moveToNext()) {
+                if (detail.length() > 0) {
+                    detail.append('\n');
+                }
+                detail.append(plan.getString(detailColumn));
+            }
+            return detail.toString();
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to explain " + sql, e);
+            return "unavailable: " + e.getMessage();
+        } finally {
+            if (plan != null) {
+                plan.close();
+            }
+        }
+    }
+
+    /**
+     * Split the search query of the URI into words, dropping everything but letters and digits
+     * so the user's input can't change the meaning of the MATCH expression.
+     */
+    private static String[] getSearchWords(Uri uri) {
+        String query = uri.getQueryParameter(PetContract.QUERY_PARAMETER_SEARCH);
+        if (query == null) {
+            return new String[0];
+        }
+
+        ArrayList<String> words = new ArrayList<>();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    // Join two arrays of selection arguments, the second one may be null.
+    private static String[] concat(String[] first, String[] second) {
+        if (second == null) {
+            return first;
+        }
+        String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Query the change log after the sequence number of the since parameter, oldest first.
+     * The caller's selection narrows the changes down further. If compaction already dropped
+     * deletions after the sequence number, the answer is a single
+     * {@link PetChangeEntry#OPERATION_RESYNC} row instead.
+     */
+    private static Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection,
+                                       String selection, String[] selectionArgs) {
+        long since;
+        try {
+            String sinceParameter = uri.getQueryParameter(PetContract.QUERY_PARAMETER_SINCE);
+            since = sinceParameter == null ? 0 : Long.parseLong(sinceParameter);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid sequence number in " + uri, e);
+        }
+
+        String changesSelection = PetChangeEntry.COLUMN_SEQUENCE + ">?";
+        String[] changesArgs = new String[] {String.valueOf(since)};
+        if (!TextUtils.isEmpty(selection)) {
+            changesSelection = changesSelection + " AND (" + selection + ")";
+            changesArgs = DatabaseUtils.appendSelectionArgs(changesArgs, selectionArgs);
+        }
+
+        Cursor cursor = database.query(PetChangeEntry.TABLE_NAME, projection, changesSelection,
+                changesArgs, null, null, PetChangeEntry.COLUMN_SEQUENCE, getLimit(uri));
+
+        // Checked after the query ran, so a compaction in between can't slip through
+        cursor.getCount();
+        if (getChangesHorizon(database) <= since) {
+            return cursor;
+        }
+        cursor.close();
+
+        String[] columns = projection != null ? projection : new String[] {
+                PetChangeEntry.COLUMN_SEQUENCE,
+                PetChangeEntry.COLUMN_PET_ID,
+                PetChangeEntry.COLUMN_OPERATION,
+                PetChangeEntry.COLUMN_CHANGED
+        };
+        // The consumer continues after the latest change, once it read the pets table again
+        long latest = DatabaseUtils.longForQuery(database, "SELECT MAX(IFNULL((SELECT MAX(" +
+                PetChangeEntry.COLUMN_SEQUENCE + ") FROM " + PetChangeEntry.TABLE_NAME +
+                "), 0), (SELECT " + PetChangeEntry.COLUMN_SEQUENCE + " FROM " +
+                PetChangeEntry.HORIZON_TABLE_NAME + "))", null);
+        MatrixCursor resync = new MatrixCursor(columns, 1);
+        MatrixCursor.RowBuilder row = resync.newRow();
+        for (String column : columns) {
+            if (PetChangeEntry.COLUMN_SEQUENCE.equals(column)) {
+                row.add(latest);
+            } else if (PetChangeEntry.COLUMN_OPERATION.equals(column)) {
+                row.add(PetChangeEntry.OPERATION_RESYNC);
+            } else if (PetChangeEntry.COLUMN_CHANGED.equals(column)) {
+                row.add(System.currentTimeMillis());
+            } else {
+                row.add(null);
+            }
+        }
+        return resync;
+    }
+
+    // Highest sequence number compaction dropped for good, consumers before it have to resync
+    private static long getChangesHorizon(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "SELECT " + PetChangeEntry.COLUMN_SEQUENCE +
+                " FROM " + PetChangeEntry.HORIZON_TABLE_NAME, null);
+    }
+
+    /**
+     * Compact the change log in the background, at most once per
+     * {@link #COMPACTION_INTERVAL_MILLIS}. Called after writes, so an idle app never compacts.
+     */
+    private void scheduleCompaction() {
+        long now = SystemClock.elapsedRealtime();
+        long last = mLastCompaction.get();
+        if (last != 0 && now - last < COMPACTION_INTERVAL_MILLIS) {
+            return;
+        }
+        // Only one of the writers racing here schedules the compaction
+        if (!mLastCompaction.compareAndSet(last, now)) {
+            return;
+        }
+
+        try {
+            mBackgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactChanges();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The provider is shutting down
+        }
+    }
+
+    /**
+     * Drop every change of the log except the latest one of each pet. Consumers which are
+     * behind still see every pet that changed since their sequence number, with its latest
+     * operation. Deletions older than {@link #DELETE_RETENTION_MILLIS} are dropped as well, so
+     * the log doesn't grow with every pet ever deleted, and the horizon moves past them.
+     */
+    private void compactChanges() {
+        long start = System.nanoTime();
+        int removed;
+        try {
+            SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
+            database.beginTransactionNonExclusive();
+            try {
+                removed = database.delete(PetChangeEntry.TABLE_NAME,
+                        PetChangeEntry.COLUMN_SEQUENCE + " NOT IN (SELECT MAX(" +
+                                PetChangeEntry.COLUMN_SEQUENCE + ") FROM " +
+                                PetChangeEntry.TABLE_NAME + " GROUP BY " +
+                                PetChangeEntry.COLUMN_PET_ID + ")",
+                        null);
+
+                String expiredSelection = PetChangeEntry.COLUMN_OPERATION + "=? AND " +
+                        PetChangeEntry.COLUMN_CHANGED + "<?";
+                String[] expiredArgs = new String[] {
+                        PetChangeEntry.OPERATION_DELETE,
+                        String.valueOf(System.currentTimeMillis() - DELETE_RETENTION_MILLIS)
+                };
+                // The horizon only ever moves forward
+                database.execSQL("UPDATE " + PetChangeEntry.HORIZON_TABLE_NAME + " SET " +
+                        PetChangeEntry.COLUMN_SEQUENCE + "=IFNULL((SELECT MAX(" +
+                        PetChangeEntry.COLUMN_SEQUENCE + ") FROM " + PetChangeEntry.TABLE_NAME +
+                        " WHERE " + expiredSelection + " AND " + PetChangeEntry.COLUMN_SEQUENCE +
+                        ">" + PetChangeEntry.HORIZON_TABLE_NAME + "." +
+                        PetChangeEntry.COLUMN_SEQUENCE + "), " + PetChangeEntry.COLUMN_SEQUENCE +
+                        ")", expiredArgs);
+                removed += database.delete(PetChangeEntry.TABLE_NAME, expiredSelection,
+                        expiredArgs);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (SQLException e) {
+            // The next write schedules another try once the interval has passed
+            Log.e(LOG_TAG, "Failed to compact the change log", e);
+            return;
+        }
+
+        mMetrics.record(PetProviderMetrics.COMPACT_CHANGES, getUriName(PET_CHANGES), start,
+                removed);
+        Log.i(LOG_TAG, "Compacted the change log by " + removed + " changes in " +
+                (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Build the LIMIT clause from the limit and offset query parameters of the URI.
+     * Returns null if the URI doesn't ask for a page.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+
+        String offset = uri.getQueryParameter(PetContract.QUERY_PARAMETER_OFFSET);
+        try {
+            // Parse the values, so only numbers end up in the SQL
+            int limitValue = Integer.parseInt(limit);
+            int offsetValue = offset == null ? 0 : Integer.parseInt(offset);
+            if (limitValue < 0 || offsetValue < 0) {
+                throw new IllegalArgumentException("Negative page bounds in " + uri);
+            }
+            return offsetValue + "," + limitValue;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page bounds in " + uri, e);
+        }
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
         final int match = sUriMatcher.match(uri);
 
+        Uri newUri;
         switch (match) {
             case PETS:
-                return insertPet(uri, contentValues);
+                newUri = insertPet(uri, prepareWrite(uri, contentValues));
+                break;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
+
+        mMetrics.record(PetProviderMetrics.INSERT, getUriName(match), start,
+                newUri == null ? 0 : 1);
+        return newUri;
+    }
+
+    /**
+     * Insert a set of new rows into the provider. All rows are written inside a single
+     * transaction with one compiled insert statement, and listeners are notified only once.
+     * If any row fails to insert the whole set is rolled back.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+
+        int rowsInserted;
+        switch (match) {
+            case PETS:
+                ContentValues[] rows = new ContentValues[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    rows[i] = prepareWrite(uri, values[i]);
+                }
+                rowsInserted = bulkInsertPets(rows);
+                break;
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        mMetrics.record(PetProviderMetrics.BULK_INSERT, getUriName(match), start, rowsInserted);
+        return rowsInserted;
+    }
+
+    /**
+     * Apply a batch of operations inside a single transaction. Change notifications of the
+     * individual operations are held back and sent as one notification once the batch commits.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = System.nanoTime();
+        SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
+
+        // Write transactions don't need an exclusive lock, readers keep going on their own
+        // connections while the batch runs
+        Set<Uri> pendingNotifications = new LinkedHashSet<>();
+        mPendingNotifications.set(pendingNotifications);
+
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+
+        database.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+
+                // Let other connections in between operations the caller marked as safe
+                if (i > 0 && operation.isYieldAllowed()) {
+                    database.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mPendingNotifications.remove();
+        }
+
+        // Readers may have cached rows the batch changed before it committed
+        invalidateRowCache(pendingNotifications);
+        if (!pendingNotifications.isEmpty()) {
+            mStatsCache.invalidate();
+        }
+
+        // Nothing is sent if the batch rolled back with an exception above
+        notifyBatchChanges(pendingNotifications);
+
+        // The operations of the batch are recorded one by one as well
+        mMetrics.record(PetProviderMetrics.APPLY_BATCH, "batch", start, results.length);
+        return results;
     }
 
     /**
@@ -143,21 +838,31 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
         final int match = sUriMatcher.match(uri);
 
+        contentValues = prepareWrite(uri, contentValues);
+
+        int rowsUpdated;
         switch (match) {
             case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                rowsUpdated = updatePet(contentValues, selection, selectionArgs, null);
+                break;
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
+                long id = ContentUris.parseId(uri);
                 selection = PetEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                selectionArgs = new String[] { String.valueOf(id) };
+                rowsUpdated = updatePet(contentValues, selection, selectionArgs, new long[] {id});
+                break;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
+
+        mMetrics.record(PetProviderMetrics.UPDATE, getUriName(match), start, rowsUpdated);
+        return rowsUpdated;
     }
 
     /**
@@ -165,38 +870,385 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writable database
-        SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
-
-        // Track the number of rows that were deleted
-        int rowsDeleted;
-
+        long start = System.nanoTime();
         int match = sUriMatcher.match(uri);
 
+        // The server only has to learn about deletions which didn't come from it
+        boolean keepTombstones = !isCallerSyncAdapter(uri);
+
+        int rowsDeleted;
         switch(match) {
             case PETS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deletePets(selection, selectionArgs, null, keepTombstones);
                 break;
             case PET_ID:
                 // Delete a single row given by the ID in the URI
+                long id = ContentUris.parseId(uri);
                 selection = PetEntry._ID + "=?";
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                selectionArgs = new String[] {String.valueOf(id)};
+                rowsDeleted = deletePets(selection, selectionArgs, new long[] {id},
+                        keepTombstones);
+                break;
+            case PET_TOMBSTONES:
+                // Tombstones are gone once the sync engine pushed them
+                if (keepTombstones) {
+                    throw new IllegalArgumentException("Only the sync engine deletes " + uri);
+                }
+                rowsDeleted = mPetDbHelper.getWritableDatabase().delete(
+                        PetTombstoneEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
-        if(rowsDeleted != 0) {
-            // Notify all listeners that the data has changed for the pet content URI.
-            // uri: content://com.example.android.pets/pets
-            getContext().getContentResolver().notifyChange(uri, null);
+        mMetrics.record(PetProviderMetrics.DELETE, getUriName(match), start, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    /**
+     * Provider specific methods, see {@link PetContract#METHOD_GET_CACHE_STATS}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case PetContract.METHOD_GET_CACHE_STATS:
+                Bundle stats = new Bundle();
+                stats.putInt(PetContract.KEY_CACHE_HITS, mRowCache.hitCount());
+                stats.putInt(PetContract.KEY_CACHE_MISSES, mRowCache.missCount());
+                stats.putInt(PetContract.KEY_CACHE_SIZE, mRowCache.size());
+                stats.putInt(PetContract.KEY_CACHE_MAX_SIZE, mRowCache.maxSize());
+                return stats;
+            case PetContract.METHOD_GET_METRICS:
+                return mMetrics.toBundle();
+            case PetContract.METHOD_GET_WARM_UP:
+                Bundle warmUp = new Bundle();
+                warmUp.putLong(PetContract.KEY_WARM_UP_UPTIME, mWarmUpUptime);
+                warmUp.putLong(PetContract.KEY_WARM_UP_MILLIS, mWarmUpMillis);
+                return warmUp;
+            case PetContract.METHOD_RESET_METRICS:
+                mMetrics.reset();
+                mSlowQueries.clear();
+                return null;
+            case PetContract.METHOD_SET_SLOW_QUERY_THRESHOLD:
+                mSlowQueries.setThresholdMillis(Long.parseLong(arg));
+                return null;
+            case PetContract.METHOD_GET_SLOW_QUERIES:
+                Bundle slowQueries = new Bundle();
+                slowQueries.putLong(PetContract.KEY_SLOW_QUERY_THRESHOLD,
+                        mSlowQueries.getThresholdMillis());
+                slowQueries.putParcelableArrayList(PetContract.KEY_SLOW_QUERIES,
+                        mSlowQueries.toBundles());
+                return slowQueries;
+            default:
+                return super.call(method, arg, extras);
         }
+    }
 
-        // Return the number of deleted rows
-        return rowsDeleted;
+    /**
+     * Open a stream of all pets for the export URI. The rows are written into a pipe on a
+     * background thread while the caller reads the other end.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        int match = sUriMatcher.match(uri);
+        if (match == PET_PHOTO) {
+            long start = System.nanoTime();
+            long id = Long.parseLong(uri.getPathSegments().get(1));
+            ParcelFileDescriptor photo = "r".equals(mode) ? openPhoto(id) : openNewPhoto(id);
+            mMetrics.record(PetProviderMetrics.OPEN_FILE, getUriName(PET_PHOTO), start, 1);
+            return photo;
+        }
+        if (match != PETS_EXPORT) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException(
+                    "Export is read only, cannot open " + uri + " for " + mode);
+        }
+        // Only the time to open the pipe, the rows are written after this returns
+        long start = System.nanoTime();
+        ParcelFileDescriptor pipe = openPipeHelper(uri, getType(uri), null,
+                getExportFormat(uri), new PetExporter(mPetDbHelper));
+        mMetrics.record(PetProviderMetrics.OPEN_FILE, getUriName(PETS_EXPORT), start, 0);
+        return pipe;
+    }
+
+    // Open the current photo of the pet for reading
+    private ParcelFileDescriptor openPhoto(long id) throws FileNotFoundException {
+        String photo = getPhotoName(mPetDbHelper.getReadableDatabase(), id);
+        if (photo == null) {
+            throw new FileNotFoundException("No photo of pet " + id);
+        }
+        return ParcelFileDescriptor.open(new File(getPhotoDirectory(), photo),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Open a new, empty photo file of the pet for writing. Readers keep getting the old photo
+     * until the writer closes the file, then the new photo replaces it and the old file is
+     * deleted. A file which isn't an image is dropped.
+     */
+    private ParcelFileDescriptor openNewPhoto(final long id) throws FileNotFoundException {
+        if (!petExists(mPetDbHelper.getReadableDatabase(), id)) {
+            throw new FileNotFoundException("No pet " + id);
+        }
+
+        final File file;
+        try {
+            File directory = getPhotoDirectory();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            file = File.createTempFile(id + "-", ".jpg", directory);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot create a photo of pet " + id + ": " + e);
+        }
+
+        return ParcelFileDescriptor.open(file,
+                ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_TRUNCATE,
+                getPhotoHandler(),
+                new ParcelFileDescriptor.OnCloseListener() {
+                    @Override
+                    public void onClose(IOException e) {
+                        if (e != null || !isImage(file)) {
+                            Log.w(LOG_TAG, "Dropping failed photo of pet " + id, e);
+                            deletePhotoFiles(Collections.singletonList(file.getName()));
+                            return;
+                        }
+                        replacePhoto(id, file.getName());
+                    }
+                });
+    }
+
+    // Point the pet to its new photo and delete the old one, runs on the photo handler
+    private void replacePhoto(long id, String photo) {
+        SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
+        String oldPhoto;
+        int rowsUpdated;
+
+        database.beginTransactionNonExclusive();
+        try {
+            oldPhoto = getPhotoName(database, id);
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_PHOTO, photo);
+            rowsUpdated = getStatementCache().updateById(id, values);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsUpdated == 0) {
+            // The pet was deleted while its photo was written
+            deletePhotoFiles(Collections.singletonList(photo));
+            return;
+        }
+        if (oldPhoto != null) {
+            deletePhotoFiles(Collections.singletonList(oldPhoto));
+        }
+        notifyPetsChanged(new long[] {id});
+    }
+
+    /**
+     * Returns the values to write for the given URI. Writes of the sync engine are taken as
+     * they are. Other callers may not set the sync columns, and a change of any column the
+     * server knows marks the pets as modified now and dirty, so the next sync pushes them.
+     */
+    private static ContentValues prepareWrite(Uri uri, ContentValues values) {
+        if (isCallerSyncAdapter(uri)) {
+            return values;
+        }
+        for (String column : SYNC_COLUMNS) {
+            if (values.containsKey(column)) {
+                throw new IllegalArgumentException("Only the sync engine writes " + column);
+            }
+        }
+        for (String column : SYNCED_COLUMNS) {
+            if (values.containsKey(column)) {
+                ContentValues marked = new ContentValues(values);
+                marked.put(PetEntry.COLUMN_MODIFIED, System.currentTimeMillis());
+                marked.put(PetEntry.COLUMN_DIRTY, 1);
+                return marked;
+            }
+        }
+        return values;
+    }
+
+    private static boolean isCallerSyncAdapter(Uri uri) {
+        return uri.getBooleanQueryParameter(PetContract.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER,
+                false);
+    }
+
+    // Keep the remote ids of the synced pets matching the selection, before they are deleted
+    private static void addTombstones(SQLiteDatabase database, String selection,
+                                      String[] selectionArgs) {
+        String tombstoneSelection = PetEntry.COLUMN_REMOTE_ID + " IS NOT NULL";
+        if (!TextUtils.isEmpty(selection)) {
+            tombstoneSelection = tombstoneSelection + " AND (" + selection + ")";
+        }
+
+        Object[] bindArgs = new Object[1 + (selectionArgs == null ? 0 : selectionArgs.length)];
+        bindArgs[0] = System.currentTimeMillis();
+        if (selectionArgs != null) {
+            System.arraycopy(selectionArgs, 0, bindArgs, 1, selectionArgs.length);
+        }
+        database.execSQL("INSERT OR REPLACE INTO " + PetTombstoneEntry.TABLE_NAME + " (" +
+                PetTombstoneEntry.COLUMN_REMOTE_ID + ", " + PetTombstoneEntry.COLUMN_DELETED +
+                ") SELECT " + PetEntry.COLUMN_REMOTE_ID + ", ? FROM " + PetEntry.TABLE_NAME +
+                " WHERE " + tombstoneSelection, bindArgs);
+    }
+
+    // New pets never come with a photo, it is written through openFile once the pet exists
+    private static void checkNoPhoto(ContentValues values) {
+        if (values.get(PetEntry.COLUMN_PET_PHOTO) != null) {
+            throw new IllegalArgumentException("Photos are written to " + PetContract.PATH_PHOTO +
+                    " URIs, not inserted with the pet");
+        }
+    }
+
+    /**
+     * Returns the values of a pet of a bulk insert with its defaults filled in: a missing
+     * gender is stored as unknown, a missing weight falls back to the column default of 0.
+     * The values of the caller are left alone.
+     *
+     * @throws IllegalArgumentException if the pet has no name
+     */
+    private static ContentValues withPetDefaults(ContentValues values) {
+        if (values.getAsString(PetEntry.COLUMN_PET_NAME) == null) {
+            throw new IllegalArgumentException("Pet requires a name");
+        }
+        if (values.getAsInteger(PetEntry.COLUMN_PET_GENDER) != null) {
+            return values;
+        }
+        ContentValues row = new ContentValues(values);
+        row.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        return row;
+    }
+
+    // Returns the name of the photo file of the pet, null without a photo
+    private static String getPhotoName(SQLiteDatabase database, long id) {
+        Cursor cursor = database.query(PetEntry.TABLE_NAME,
+                new String[] {PetEntry.COLUMN_PET_PHOTO}, PetEntry._ID + "=?",
+                new String[] {String.valueOf(id)}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean petExists(SQLiteDatabase database, long id) {
+        return DatabaseUtils.queryNumEntries(database, PetEntry.TABLE_NAME,
+                PetEntry._ID + "=?", new String[] {String.valueOf(id)}) > 0;
+    }
+
+    /**
+     * Returns the names of the photo files of the pets matching the selection. Used before
+     * pets or their photos are deleted, the files are removed once the change committed.
+     */
+    private static List<String> findPhotoNames(SQLiteDatabase database, String selection,
+                                               String[] selectionArgs) {
+        String photoSelection = PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL";
+        if (!TextUtils.isEmpty(selection)) {
+            photoSelection = photoSelection + " AND (" + selection + ")";
+        }
+
+        Cursor cursor = database.query(PetEntry.TABLE_NAME,
+                new String[] {PetEntry.COLUMN_PET_PHOTO}, photoSelection, selectionArgs,
+                null, null, null);
+        try {
+            List<String> photos = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                photos.add(cursor.getString(0));
+            }
+            return photos;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void deletePhotoFiles(List<String> photos) {
+        File directory = getPhotoDirectory();
+        for (String photo : photos) {
+            File file = new File(directory, photo);
+            if (file.exists() && !file.delete()) {
+                Log.w(LOG_TAG, "Failed to delete photo " + file);
+            }
+        }
+    }
+
+    private File getPhotoDirectory() {
+        return new File(getContext().getFilesDir(), PHOTO_DIRECTORY);
+    }
+
+    private synchronized Handler getPhotoHandler() {
+        if (mPhotoHandler == null) {
+            HandlerThread thread = new HandlerThread("PetProvider-photos");
+            thread.start();
+            mPhotoHandler = new Handler(thread.getLooper());
+        }
+        return mPhotoHandler;
+    }
+
+    // Whether the file holds an image, only its header is decoded
+    private static boolean isImage(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    /**
+     * Print the latencies of the provider calls, the cache counters and the slow queries, for
+     * adb shell dumpsys activity provider com.example.android.pets/.data.PetProvider
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        writer.println("Row cache: " + mRowCache.hitCount() + " hits, " +
+                mRowCache.missCount() + " misses, " + mRowCache.size() + "/" +
+                mRowCache.maxSize() + " rows");
+        mSlowQueries.dump(writer);
+    }
+
+    // Name of the URI pattern of a match code, groups the recorded latencies
+    private static String getUriName(int match) {
+        switch (match) {
+            case PETS:
+                return PetContract.PATH_PETS;
+            case PET_ID:
+                return PetContract.PATH_PETS + "/#";
+            case PETS_SEARCH:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH;
+            case PETS_STATS_GENDER:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_STATS + "/" +
+                        PetContract.PATH_STATS_GENDER;
+            case PETS_STATS_BREED:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_STATS + "/" +
+                        PetContract.PATH_STATS_BREED;
+            case PETS_EXPORT:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT;
+            case PET_PHOTO:
+                return PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO;
+            case PET_TOMBSTONES:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_TOMBSTONES;
+            case PET_CHANGES:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES;
+            default:
+                return "unknown";
+        }
+    }
+
+    // Returns the export format asked for by the URI, CSV unless it asks for JSON
+    private static String getExportFormat(Uri uri) {
+        String format = uri.getQueryParameter(PetContract.QUERY_PARAMETER_FORMAT);
+        if (format == null || PetContract.FORMAT_CSV.equals(format)) {
+            return PetContract.FORMAT_CSV;
+        }
+        if (PetContract.FORMAT_JSON.equals(format)) {
+            return PetContract.FORMAT_JSON;
+        }
+        throw new IllegalArgumentException("Unknown export format " + format + " in " + uri);
     }
 
     /**
@@ -211,6 +1263,21 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PETS_SEARCH:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PETS_STATS_GENDER:
+            case PETS_STATS_BREED:
+                return PetContract.PetStatsEntry.CONTENT_LIST_TYPE;
+            case PETS_EXPORT:
+                return PetContract.FORMAT_JSON.equals(getExportFormat(uri))
+                        ? PetContract.MIME_TYPE_JSON
+                        : PetContract.MIME_TYPE_CSV;
+            case PET_PHOTO:
+                return PetEntry.PHOTO_MIME_TYPE;
+            case PET_TOMBSTONES:
+                return PetTombstoneEntry.CONTENT_LIST_TYPE;
+            case PET_CHANGES:
+                return PetChangeEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -221,60 +1288,292 @@ public class PetProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertPet(Uri uri, ContentValues values) {
+        checkNoPhoto(values);
 
-        // Get writable database
+        // Insert the new pet with the given values. The transaction takes the write connection
+        // before the statement cache is locked, like every other write does.
         SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
-
-        // Insert the new pet with the given values
-        long newRowId = database.insert(
-                PetEntry.TABLE_NAME,
-                null,
-                values
-        );
-
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (newRowId == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+        long newRowId;
+        database.beginTransactionNonExclusive();
+        try {
+            newRowId = getStatementCache().insert(values);
+            database.setTransactionSuccessful();
+        } catch (SQLException e) {
+            // The insertion failed. Log an error and return null.
+            Log.e(LOG_TAG, "Failed to insert row for " + uri, e);
             return null;
+        } finally {
+            database.endTransaction();
         }
 
-        // Notify all listeners that the data has changed for the pet content URI.
-        // uri: content://com.example.android.pets/pets
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Notify all listeners that the data has changed for the new pet
+        // uri: content://com.example.android.pets/pets/<newRowId>
+        notifyPetsChanged(new long[] {newRowId});
 
         // Return the new URI with the ID (of the newly inserted row) appended at the end
         return ContentUris.withAppendedId(uri, newRowId);
     }
 
-    // Update pets in the database with the given content values.
-    private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    /**
+     * Insert all given pets in one transaction. Returns the number of inserted rows.
+     */
+    private int bulkInsertPets(ContentValues[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+        // Check every row before the transaction starts, a bad row rejects the batch before
+        // anything is written
+        ContentValues[] rows = new ContentValues[values.length];
+        for (int i = 0; i < values.length; i++) {
+            checkNoPhoto(values[i]);
+            rows[i] = withPetDefaults(values[i]);
+        }
+
+        // Get writable database
         SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
 
+        // Rows of the same shape share one compiled insert, which is only rebound for every row
+        PetStatementCache statements = getStatementCache();
+
+        database.beginTransactionNonExclusive();
+        try {
+            for (ContentValues row : rows) {
+                statements.insert(row);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Notify all listeners once for the whole set of inserted rows. New rows can't be
+        // in the row cache yet, so it is left alone.
+        mStatsCache.invalidate();
+        scheduleCompaction();
+        notifyChange(PetEntry.CONTENT_URI);
+
+        return values.length;
+    }
+
+    /**
+     * Update pets in the database with the given content values. The _IDs of the pets are
+     * looked up from the selection unless the caller already knows them, ids is only passed
+     * for the single pet of a pets/# URI.
+     */
+    private int updatePet(ContentValues values, String selection, String[] selectionArgs, long[] ids) {
         //  || isDataValid(values)
-        if(values.size() > 0) {
-
-            // Perform the update on the database and get the number of rows affected
-            int rowsUpdated = database.update(
-                    PetEntry.TABLE_NAME,
-                    values,
-                    selection,
-                    selectionArgs
-            );
-
-            // If 1 or more rows were updated, then notify all listeners that the data at the
-            // given URI has changed
-            if(rowsUpdated != 0) {
-                getContext().getContentResolver().notifyChange(uri, null);
+        if(values.size() == 0) {
+            return 0;
+        }
+
+        // A photo can only be cleared here, new photos are written through openFile
+        boolean clearsPhoto = values.containsKey(PetEntry.COLUMN_PET_PHOTO);
+        if (clearsPhoto && values.get(PetEntry.COLUMN_PET_PHOTO) != null) {
+            throw new IllegalArgumentException("Photos are written to " + PetContract.PATH_PHOTO +
+                    " URIs, the " + PetEntry.COLUMN_PET_PHOTO + " column can only be cleared");
+        }
+
+        SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        List<String> photos = Collections.emptyList();
+
+        // Callers only pass the _ID for the single pet of a pets/# URI
+        boolean byId = ids != null;
+
+        // Find the pets and update them in one transaction, so no other pet can start
+        // matching the selection in between
+        database.beginTransactionNonExclusive();
+        try {
+            if (ids == null) {
+                ids = findPetIds(database, selection, selectionArgs);
+            }
+            if (clearsPhoto) {
+                photos = findPhotoNames(database, selection, selectionArgs);
+            }
+
+            // Perform the update on the database and get the number of rows affected.
+            // An update of a single pet by its _ID runs a precompiled statement.
+            if (byId) {
+                rowsUpdated = getStatementCache().updateById(ids[0], values);
+            } else {
+                rowsUpdated = database.update(
+                        PetEntry.TABLE_NAME,
+                        values,
+                        selection,
+                        selectionArgs
+                );
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // The cleared photos are gone for good once the update committed
+        deletePhotoFiles(photos);
+
+        // If 1 or more rows were updated, then notify all listeners of the updated pets
+        if(rowsUpdated != 0) {
+            notifyPetsChanged(ids);
+        }
+
+        // Return the number of rows updated
+        return rowsUpdated;
+    }
+
+    /**
+     * Delete the pets matching the selection. The _IDs of the pets are looked up from the
+     * selection unless the caller already knows them, ids is only passed for the single pet
+     * of a pets/# URI. With keepTombstones the remote ids of deleted pets which were synced
+     * before are kept for the next push.
+     */
+    private int deletePets(String selection, String[] selectionArgs, long[] ids,
+                           boolean keepTombstones) {
+        // Get writable database
+        SQLiteDatabase database = mPetDbHelper.getWritableDatabase();
+
+        // Track the number of rows that were deleted
+        int rowsDeleted;
+
+        // Photos of the deleted pets, removed once the delete committed
+        List<String> photos;
+
+        // Callers only pass the _ID for the single pet of a pets/# URI
+        boolean byId = ids != null;
+
+        database.beginTransactionNonExclusive();
+        try {
+            if (ids == null) {
+                ids = findPetIds(database, selection, selectionArgs);
             }
+            photos = findPhotoNames(database, selection, selectionArgs);
+            if (keepTombstones) {
+                addTombstones(database, selection, selectionArgs);
+            }
+
+            // A delete of a single pet by its _ID runs a precompiled statement
+            if (byId) {
+                rowsDeleted = getStatementCache().deleteById(ids[0]);
+            } else {
+                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        deletePhotoFiles(photos);
+
+        if(rowsDeleted != 0) {
+            // Notify all listeners of the deleted pets
+            notifyPetsChanged(ids);
+        }
+
+        // Return the number of deleted rows
+        return rowsDeleted;
+    }
+
+    /**
+     * Find the _IDs of the pets matching the selection. Returns null if the selection matches
+     * more than {@link #MAX_ROW_NOTIFICATIONS} pets, the change then counts as a change of the
+     * whole table and the lookup stops early.
+     */
+    private static long[] findPetIds(SQLiteDatabase database, String selection,
+                                     String[] selectionArgs) {
+        Cursor cursor = database.query(
+                PetEntry.TABLE_NAME,
+                new String[] {PetEntry._ID},
+                selection,
+                selectionArgs,
+                null,
+                null,
+                null,
+                String.valueOf(MAX_ROW_NOTIFICATIONS + 1)
+        );
+        try {
+            if (cursor.getCount() > MAX_ROW_NOTIFICATIONS) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Notify listeners of the changed pets through their own URIs, content://.../pets/<id>.
+     * Observers of the whole table are reached as well, since they watch the URIs below it.
+     * A null array of _IDs stands for a change of the whole table.
+     */
+    private void notifyPetsChanged(long[] ids) {
+        mRowCache.invalidate(ids);
+        mStatsCache.invalidate();
+        scheduleCompaction();
+
+        if (ids == null) {
+            notifyChange(PetEntry.CONTENT_URI);
+            return;
+        }
+        for (long id : ids) {
+            notifyChange(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+        }
+    }
+
+    /**
+     * Returns the pool of compiled write statements, bound to the writable database.
+     */
+    private synchronized PetStatementCache getStatementCache() {
+        if (mStatementCache == null) {
+            mStatementCache = new PetStatementCache(
+                    mPetDbHelper.getWritableDatabase(), STATEMENT_CACHE_SIZE);
+        }
+        return mStatementCache;
+    }
 
-            // Return the number of rows updated
-            return rowsUpdated;
+    /**
+     * Notify listeners that the data at the given URI has changed. While a batch is running on
+     * this thread the URI is only recorded and sent when the batch completes.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> pendingNotifications = mPendingNotifications.get();
+        if (pendingNotifications != null) {
+            pendingNotifications.add(uri);
         } else {
-            // TODO: Return the number of rows that were affected
-            return 0;
+            getContext().getContentResolver().notifyChange(uri, null);
         }
     }
 
+    /**
+     * Drop the cached rows of the pets behind the changed URIs, all rows if the whole
+     * table changed.
+     */
+    private void invalidateRowCache(Set<Uri> changedUris) {
+        for (Uri uri : changedUris) {
+            if (sUriMatcher.match(uri) == PET_ID) {
+                mRowCache.invalidate(new long[] {ContentUris.parseId(uri)});
+            } else {
+                mRowCache.invalidate(null);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send one notification for all URIs changed by a batch. A single changed URI is sent as is,
+     * otherwise the changes are merged into one notification for the whole pets table, which
+     * also reaches observers of the single pet URIs below it.
+     */
+    private void notifyBatchChanges(Set<Uri> changedUris) {
+        if (changedUris.isEmpty()) {
+            return;
+        }
+
+        Uri uri = changedUris.size() == 1 ? changedUris.iterator().next() : PetEntry.CONTENT_URI;
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
      //helper method for data validation
 //    public boolean isDataValid(ContentValues values) {
 //
@@ -0,0 +1,166 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the provider calls, one per operation and URI pattern. Recording only
+ * bumps a few atomic counters, so it stays on for every call. Latencies are kept in buckets
+ * which double in size, percentiles are therefore accurate to a factor of two.
+ */
+final class PetProviderMetrics {
+
+    // Operations of the provider
+    static final String QUERY = "query";
+    static final String INSERT = "insert";
+    static final String BULK_INSERT = "bulkInsert";
+    static final String UPDATE = "update";
+    static final String DELETE = "delete";
+    static final String APPLY_BATCH = "applyBatch";
+    static final String OPEN_FILE = "openFile";
+    static final String OPEN_DATABASE = "openDatabase";
+    static final String COMPACT_CHANGES = "compactChanges";
+
+    // Bucket i counts the calls which took less than 2^i microseconds, the last bucket the rest
+    private static final int BUCKET_COUNT = 32;
+
+    // Histograms by operation, then by URI pattern
+    private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> mHistograms =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Record a call of the given operation on the given URI pattern which started at the
+     * given {@link System#nanoTime()} and returned or changed the given number of rows.
+     */
+    void record(String operation, String uriName, long startNanos, int rows) {
+        histogram(operation, uriName).add(System.nanoTime() - startNanos, rows);
+    }
+
+    /**
+     * Drop everything recorded so far.
+     */
+    void reset() {
+        mHistograms.clear();
+    }
+
+    /**
+     * Returns a bundle per histogram, by "operation uri", with the number of calls and rows
+     * and the latency percentiles in microseconds.
+     */
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, Histogram> entry : sortedHistograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            Bundle values = new Bundle();
+            values.putLong(PetContract.KEY_METRICS_COUNT, histogram.count.get());
+            values.putLong(PetContract.KEY_METRICS_ROWS, histogram.rows.get());
+            values.putLong(PetContract.KEY_METRICS_P50, histogram.percentileMicros(0.50));
+            values.putLong(PetContract.KEY_METRICS_P90, histogram.percentileMicros(0.90));
+            values.putLong(PetContract.KEY_METRICS_P99, histogram.percentileMicros(0.99));
+            values.putLong(PetContract.KEY_METRICS_MAX, histogram.maxNanos.get() / 1000);
+            bundle.putBundle(entry.getKey(), values);
+        }
+        return bundle;
+    }
+
+    /**
+     * Print a table of all histograms, latencies in microseconds.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Provider calls, latencies in microseconds:");
+        writer.println(String.format("  %-32s %8s %10s %8s %8s %8s %8s %8s",
+                "operation", "count", "rows", "mean", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, Histogram> entry : sortedHistograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            long count = histogram.count.get();
+            writer.println(String.format("  %-32s %8d %10d %8d %8d %8d %8d %8d",
+                    entry.getKey(),
+                    count,
+                    histogram.rows.get(),
+                    histogram.totalNanos.get() / Math.max(1, count) / 1000,
+                    histogram.percentileMicros(0.50),
+                    histogram.percentileMicros(0.90),
+                    histogram.percentileMicros(0.99),
+                    histogram.maxNanos.get() / 1000));
+        }
+    }
+
+    private Histogram histogram(String operation, String uriName) {
+        ConcurrentMap<String, Histogram> byUri = mHistograms.get(operation);
+        if (byUri == null) {
+            ConcurrentMap<String, Histogram> created = new ConcurrentHashMap<>();
+            byUri = mHistograms.putIfAbsent(operation, created);
+            if (byUri == null) {
+                byUri = created;
+            }
+        }
+
+        Histogram histogram = byUri.get(uriName);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = byUri.putIfAbsent(uriName, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    // All histograms by "operation uri", in a stable order for the output
+    private Map<String, Histogram> sortedHistograms() {
+        Map<String, Histogram> sorted = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentMap<String, Histogram>> operation
+                : mHistograms.entrySet()) {
+            for (Map.Entry<String, Histogram> uri : operation.getValue().entrySet()) {
+                sorted.put(operation.getKey() + " " + uri.getKey(), uri.getValue());
+            }
+        }
+        return sorted;
+    }
+
+    private static final class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void add(long nanos, int rowCount) {
+            long micros = nanos / 1000;
+            int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            rows.addAndGet(rowCount);
+            totalNanos.addAndGet(nanos);
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        // Returns the upper bound of the bucket holding the given fraction of the calls
+        long percentileMicros(double fraction) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(1L << i, maxNanos.get() / 1000);
+                }
+            }
+            return maxNanos.get() / 1000;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selection and sort order for the query parameters written by {@link PetQuery}. The page after
+ * a pet is selected with a keyset condition on (sort column, _ID) written so the sort column's
+ * index can seek straight to the first row of the page. The page before a pet reads the index
+ * backwards from that pet and sorts the few rows it found forward again.
+ */
+final class PetQuerySql {
+
+    final String selection;
+    final String[] selectionArgs;
+    final String sortOrder;
+
+    private PetQuerySql(String selection, String[] selectionArgs, String sortOrder) {
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        this.sortOrder = sortOrder;
+    }
+
+    /**
+     * Returns true if the URI was built by {@link PetQuery#toUri()}.
+     */
+    static boolean isPetQuery(Uri uri) {
+        return uri.getQueryParameter(PetContract.QUERY_PARAMETER_SORT) != null;
+    }
+
+    /**
+     * Build the SQL for the query parameters of the URI, combined with the caller's selection.
+     * The sort order of the URI replaces any sort order of the caller.
+     */
+    static PetQuerySql fromUri(Uri uri, String selection, String[] selectionArgs) {
+        String sort = uri.getQueryParameter(PetContract.QUERY_PARAMETER_SORT);
+
+        // Names sort the way the name index is built, without case
+        String sortKey = PetQuery.getSortColumn(sort);
+        if (PetQuery.SORT_NAME.equals(sort)) {
+            sortKey = sortKey + " COLLATE NOCASE";
+        }
+
+        List<String> conditions = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+
+        String gender = uri.getQueryParameter(PetContract.QUERY_PARAMETER_GENDER);
+        if (gender != null) {
+            conditions.add(PetEntry.COLUMN_PET_GENDER + " = ?");
+            args.add(String.valueOf(parseInt(uri, gender)));
+        }
+
+        String minWeight = uri.getQueryParameter(PetContract.QUERY_PARAMETER_MIN_WEIGHT);
+        if (minWeight != null) {
+            conditions.add(PetEntry.COLUMN_PET_WEIGHT + " >= ?");
+            args.add(String.valueOf(parseInt(uri, minWeight)));
+        }
+
+        String maxWeight = uri.getQueryParameter(PetContract.QUERY_PARAMETER_MAX_WEIGHT);
+        if (maxWeight != null) {
+            conditions.add(PetEntry.COLUMN_PET_WEIGHT + " <= ?");
+            args.add(String.valueOf(parseInt(uri, maxWeight)));
+        }
+
+        String afterId = uri.getQueryParameter(PetContract.QUERY_PARAMETER_AFTER_ID);
+        if (afterId != null) {
+            String id = String.valueOf(parseLong(uri, afterId));
+            String afterKey = uri.getQueryParameter(PetContract.QUERY_PARAMETER_AFTER_KEY);
+
+            if (PetQuery.SORT_ID.equals(sort)) {
+                conditions.add(PetEntry._ID + " > ?");
+                Collections.addAll(args, id);
+            } else if (afterKey == null) {
+                // The last pet had no breed. NULLs sort first, so the page goes on with the
+                // remaining pets without a breed and then all pets with one.
+                conditions.add("(" + sortKey + " IS NOT NULL OR " + PetEntry._ID + " > ?)");
+                Collections.addAll(args, id);
+            } else {
+                // (key, _id) > (afterKey, afterId), with a range on the key the index can seek to
+                conditions.add(sortKey + " >= ? AND (" +
+                        sortKey + " > ? OR " + PetEntry._ID + " > ?)");
+                Collections.addAll(args, afterKey, afterKey, id);
+            }
+        }
+
+        String beforeId = uri.getQueryParameter(PetContract.QUERY_PARAMETER_BEFORE_ID);
+        if (beforeId != null) {
+            String id = String.valueOf(parseLong(uri, beforeId));
+            String beforeKey = uri.getQueryParameter(PetContract.QUERY_PARAMETER_BEFORE_KEY);
+
+            if (PetQuery.SORT_ID.equals(sort)) {
+                conditions.add(PetEntry._ID + " < ?");
+                Collections.addAll(args, id);
+            } else if (beforeKey == null) {
+                // The first pet had no breed, only pets without a breed come before it
+                conditions.add(sortKey + " IS NULL AND " + PetEntry._ID + " < ?");
+                Collections.addAll(args, id);
+            } else {
+                // (key, _id) < (beforeKey, beforeId), pets without a key sort first
+                conditions.add("(" + sortKey + " <= ? AND (" + sortKey + " < ? OR " +
+                        PetEntry._ID + " < ?) OR " + sortKey + " IS NULL)");
+                Collections.addAll(args, beforeKey, beforeKey, id);
+            }
+        }
+
+        if (!TextUtils.isEmpty(selection)) {
+            conditions.add("(" + selection + ")");
+            if (selectionArgs != null) {
+                Collections.addAll(args, selectionArgs);
+            }
+        }
+
+        String sortOrder = PetQuery.SORT_ID.equals(sort)
+                ? PetEntry._ID
+                : sortKey + ", " + PetEntry._ID;
+
+        String where = conditions.isEmpty() ? null : TextUtils.join(" AND ", conditions);
+        if (beforeId != null) {
+            // The last pets before the page start, found by reading the index backwards
+            String reverseSortOrder = PetQuery.SORT_ID.equals(sort)
+                    ? PetEntry._ID + " DESC"
+                    : sortKey + " DESC, " + PetEntry._ID + " DESC";
+            String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+            where = PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " +
+                    PetEntry.TABLE_NAME + " WHERE " + where + " ORDER BY " + reverseSortOrder +
+                    (limit == null ? "" : " LIMIT " + parseInt(uri, limit)) + ")";
+        }
+
+        return new PetQuerySql(where, args.toArray(new String[args.size()]), sortOrder);
+    }
+
+    private static int parseInt(Uri uri, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number " + value + " in " + uri, e);
+        }
+    }
+
+    private static long parseLong(Uri uri, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number " + value + " in " + uri, e);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes pets to the {@link PetProvider} on a background thread, so the UI never waits for
+ * the database. Writes run one after another in the order they were queued. An update of a pet
+ * which still waits in the queue absorbs the following updates of the same pet, so quick
+ * successive edits hit the database once.
+ */
+public class PetRepository {
+
+    private static final String LOG_TAG = PetRepository.class.getSimpleName();
+
+    /**
+     * Receives the result of a queued write on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param uri      URI of the written pet, or null if an insert failed
+         * @param rowCount number of pets inserted, updated or deleted, 0 if the write failed
+         */
+        void onWriteFinished(Uri uri, int rowCount);
+    }
+
+    private static PetRepository sInstance;
+
+    private final ContentResolver mContentResolver;
+
+    // Single thread, so the writes keep their order
+    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+
+    // Syncs wait for the network, so they get their own thread and never hold up the writes
+    private final Executor mSyncExecutor = Executors.newSingleThreadExecutor();
+
+    // Generating thousands of pets takes seconds, so it gets its own thread as well and an
+    // editor saving a pet meanwhile doesn't wait for it
+    private final Executor mGenerateExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Updates waiting in the queue, by pet URI. Guarded by itself.
+    private final Map<Uri, PendingUpdate> mPendingUpdates = new HashMap<>();
+
+    private PetRepository(Context context) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+    }
+
+    public static synchronized PetRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue the insertion of a new pet.
+     */
+    public void insert(final ContentValues values, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri newUri = null;
+                try {
+                    newUri = mContentResolver.insert(PetEntry.CONTENT_URI, values);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to insert pet", e);
+                }
+                postResult(callback, newUri, newUri == null ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Queue an update of the pet with the given URI. If an update of the same pet is still
+     * waiting, the values are merged into it and both callbacks get its result.
+     */
+    public void update(final Uri petUri, ContentValues values, Callback callback) {
+        synchronized (mPendingUpdates) {
+            PendingUpdate pending = mPendingUpdates.get(petUri);
+            if (pending != null) {
+                pending.values.putAll(values);
+                pending.callbacks.add(callback);
+                return;
+            }
+
+            final PendingUpdate update = new PendingUpdate(values, callback);
+            mPendingUpdates.put(petUri, update);
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // From here on later updates of the pet need their own write
+                    synchronized (mPendingUpdates) {
+                        mPendingUpdates.remove(petUri);
+                    }
+
+                    int rowsUpdated = 0;
+                    try {
+                        rowsUpdated = mContentResolver.update(petUri, update.values, null, null);
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Failed to update " + petUri, e);
+                    }
+                    for (Callback updateCallback : update.callbacks) {
+                        postResult(updateCallback, petUri, rowsUpdated);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue the deletion of the pet with the given URI, or of all pets for
+     * {@link PetEntry#CONTENT_URI}.
+     */
+    public void delete(final Uri uri, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int rowsDeleted = 0;
+                try {
+                    rowsDeleted = mContentResolver.delete(uri, null, null);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to delete " + uri, e);
+                }
+                postResult(callback, uri, rowsDeleted);
+            }
+        });
+    }
+
+    /**
+     * Queue the insertion of the given number of made-up pets from a {@link PetDataGenerator}
+     * with the given seed. Runs beside the other writes, not in their order. The callback gets
+     * the table URI and the number of pets inserted.
+     */
+    public void generate(final int count, final long seed, final Callback callback) {
+        mGenerateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int inserted = 0;
+                try {
+                    inserted = new PetDataGenerator(seed).insert(mContentResolver, count);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to generate " + count + " pets", e);
+                }
+                postResult(callback, PetEntry.CONTENT_URI, inserted);
+            }
+        });
+    }
+
+    /**
+     * Queue storing the image at the given URI as the photo of the pet with the given URI,
+     * replacing its old photo. The callback gets a row count of 0 if the image could not be
+     * read or stored.
+     */
+    public void savePhoto(final Uri petUri, final Uri source, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean saved = false;
+                try {
+                    saved = PetPhotos.savePhoto(mContentResolver, source,
+                            ContentUris.parseId(petUri));
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to save photo " + source + " of " + petUri, e);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to save photo " + source + " of " + petUri, e);
+                }
+                postResult(callback, petUri, saved ? 1 : 0);
+            }
+        });
+    }
+
+    /**
+     * Queue a sync of the pets with the shelter server at the given URL, see
+     * {@link PetSyncEngine}. The callback gets the table URI and the number of changes pulled
+     * and pushed, or a null URI if the sync failed.
+     */
+    public void sync(final String serverUrl, final Callback callback) {
+        mSyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int changes = new PetSyncEngine(mContext, serverUrl).sync();
+                    postResult(callback, PetEntry.CONTENT_URI, changes);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to sync with " + serverUrl, e);
+                    postResult(callback, null, 0);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to sync with " + serverUrl, e);
+                    postResult(callback, null, 0);
+                }
+            }
+        });
+    }
+
+    // Hand the result of a write to its callback on the main thread
+    private void postResult(final Callback callback, final Uri uri, final int rowCount) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onWriteFinished(uri, rowCount);
+            }
+        });
+    }
+
+    // Values and callbacks of an update waiting in the queue
+    private static class PendingUpdate {
+        final ContentValues values;
+        final List<Callback> callbacks = new ArrayList<>();
+
+        PendingUpdate(ContentValues values, Callback callback) {
+            this.values = new ContentValues(values);
+            callbacks.add(callback);
+        }
+    }
+}
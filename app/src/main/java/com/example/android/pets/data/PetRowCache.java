@@ -0,0 +1,155 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Bounded LRU cache of recently read pet rows, keyed by _ID. Rows are stored with all of
+ * {@link #COLUMNS} and handed out as a MatrixCursor for the columns a query asks for.
+ *
+ * A row read from the database may only be stored with the generation taken before the read.
+ * Every invalidation moves the generation on, so a read that raced with a write never ends up
+ * in the cache.
+ */
+final class PetRowCache {
+
+    /**
+     * Columns of a cached row, all columns of the pets table, so a query with a null projection
+     * gets the same columns from the cache as from the database
+     */
+    static final String[] COLUMNS = new String[] {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO,
+            PetEntry.COLUMN_REMOTE_ID,
+            PetEntry.COLUMN_MODIFIED,
+            PetEntry.COLUMN_DIRTY
+    };
+
+    private final LruCache<Long, Object[]> mRows;
+
+    // Guarded by this
+    private long mGeneration;
+
+    PetRowCache(int maxRows) {
+        mRows = new LruCache<>(maxRows);
+    }
+
+    /**
+     * Returns true if every column of the projection is stored in a cached row.
+     * A null projection asks for all columns.
+     */
+    static boolean canServe(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (indexOf(column) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a cursor holding the cached row of the pet, or null if the pet isn't cached.
+     */
+    Cursor get(long id, String[] projection) {
+        Object[] row = mRows.get(id);
+        return row == null ? null : toCursor(row, projection);
+    }
+
+    /**
+     * Generation to pass to {@link #put}, must be taken before the row is read.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Store the row of the current cursor position, unless the cache was invalidated after
+     * the given generation was taken. Returns a cursor holding the row for the projection.
+     */
+    Cursor put(long id, Cursor cursor, long generation, String[] projection) {
+        Object[] row = new Object[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            int columnIndex = cursor.getColumnIndexOrThrow(COLUMNS[i]);
+            switch (cursor.getType(columnIndex)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    row[i] = null;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(columnIndex);
+                    break;
+                default:
+                    row[i] = cursor.getString(columnIndex);
+            }
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mRows.put(id, row);
+            }
+        }
+        return toCursor(row, projection);
+    }
+
+    /**
+     * Drop the rows of the given pets, or every row for a null array.
+     */
+    synchronized void invalidate(long[] ids) {
+        mGeneration++;
+        if (ids == null) {
+            mRows.evictAll();
+            return;
+        }
+        for (long id : ids) {
+            mRows.remove(id);
+        }
+    }
+
+    int hitCount() {
+        return mRows.hitCount();
+    }
+
+    int missCount() {
+        return mRows.missCount();
+    }
+
+    int size() {
+        return mRows.size();
+    }
+
+    int maxSize() {
+        return mRows.maxSize();
+    }
+
+    // Build a single row cursor with the columns of the projection
+    private static Cursor toCursor(Object[] row, String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        Object[] values = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            values[i] = row[indexOf(projection[i])];
+        }
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
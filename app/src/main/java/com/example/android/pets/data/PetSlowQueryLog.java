@@ -0,0 +1,138 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * The latest queries of the provider which took longer than a threshold, with their arguments
+ * and query plan. Only the newest {@link #CAPACITY} queries are kept, older ones are dropped.
+ */
+final class PetSlowQueryLog {
+
+    private static final String LOG_TAG = PetSlowQueryLog.class.getSimpleName();
+
+    /** Threshold used until a caller sets another one */
+    static final long DEFAULT_THRESHOLD_MILLIS = 100;
+
+    // Number of slow queries kept
+    private static final int CAPACITY = 32;
+
+    private volatile long mThresholdNanos = DEFAULT_THRESHOLD_MILLIS * 1000000;
+
+    // Ring buffer of the slow queries, mNext is the slot of the next one. Guarded by this.
+    private final Entry[] mEntries = new Entry[CAPACITY];
+    private int mNext;
+
+    boolean isSlow(long elapsedNanos) {
+        return elapsedNanos >= mThresholdNanos;
+    }
+
+    void setThresholdMillis(long thresholdMillis) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("Negative slow query threshold " + thresholdMillis);
+        }
+        mThresholdNanos = thresholdMillis * 1000000;
+    }
+
+    long getThresholdMillis() {
+        return mThresholdNanos / 1000000;
+    }
+
+    /**
+     * Keep a slow query, replacing the oldest one once the log is full.
+     *
+     * @param plan the detail lines of EXPLAIN QUERY PLAN, one per line
+     */
+    void add(String sql, String[] selectionArgs, long elapsedNanos, String plan) {
+        Entry entry = new Entry(System.currentTimeMillis(), elapsedNanos / 1000000, sql,
+                selectionArgs == null ? new String[0] : selectionArgs.clone(), plan);
+        Log.w(LOG_TAG, entry.toString());
+
+        synchronized (this) {
+            mEntries[mNext] = entry;
+            mNext = (mNext + 1) % CAPACITY;
+        }
+    }
+
+    synchronized void clear() {
+        Arrays.fill(mEntries, null);
+        mNext = 0;
+    }
+
+    /**
+     * Returns a bundle per slow query, oldest first, with the KEY_SLOW_QUERY_* values.
+     */
+    ArrayList<Bundle> toBundles() {
+        ArrayList<Bundle> bundles = new ArrayList<>();
+        for (Entry entry : entries()) {
+            Bundle bundle = new Bundle();
+            bundle.putLong(PetContract.KEY_SLOW_QUERY_TIME, entry.time);
+            bundle.putLong(PetContract.KEY_SLOW_QUERY_MILLIS, entry.millis);
+            bundle.putString(PetContract.KEY_SLOW_QUERY_SQL, entry.sql);
+            bundle.putStringArray(PetContract.KEY_SLOW_QUERY_ARGS, entry.selectionArgs);
+            bundle.putString(PetContract.KEY_SLOW_QUERY_PLAN, entry.plan);
+            bundle.putBoolean(PetContract.KEY_SLOW_QUERY_FULL_SCAN, entry.isFullScan());
+            bundles.add(bundle);
+        }
+        return bundles;
+    }
+
+    void dump(PrintWriter writer) {
+        ArrayList<Entry> entries = entries();
+        writer.println("Slow queries over " + getThresholdMillis() + " ms: " + entries.size());
+        for (Entry entry : entries) {
+            writer.println("  " + entry);
+        }
+    }
+
+    // The kept queries, oldest first
+    private synchronized ArrayList<Entry> entries() {
+        ArrayList<Entry> entries = new ArrayList<>(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            Entry entry = mEntries[(mNext + i) % CAPACITY];
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static final class Entry {
+        final long time;
+        final long millis;
+        final String sql;
+        final String[] selectionArgs;
+        final String plan;
+
+        Entry(long time, long millis, String sql, String[] selectionArgs, String plan) {
+            this.time = time;
+            this.millis = millis;
+            this.sql = sql;
+            this.selectionArgs = selectionArgs;
+            this.plan = plan;
+        }
+
+        // Whether SQLite reads a whole table without an index, e.g. "SCAN TABLE pets"
+        boolean isFullScan() {
+            for (String line : plan.split("\n")) {
+                if (line.startsWith("SCAN ") && !line.contains(" USING ") &&
+                        !line.contains("VIRTUAL TABLE")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return (isFullScan() ? "FULL SCAN " : "") + millis + " ms at " + new Date(time) +
+                    ": " + sql + " " + Arrays.toString(selectionArgs) +
+                    "\n    plan: " + plan.replace("\n", "\n          ");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of compiled insert, update and delete statements for the pets table. A statement is
+ * compiled once per set of columns being written and then only rebound, instead of building
+ * and preparing the SQL again for every write like SQLiteDatabase.insert/update/delete do.
+ *
+ * Bound statements can't be shared between threads, so every write holds the lock of the
+ * cache. Callers must already be in a transaction of the writable database: the lock is then
+ * always taken after the write connection. A writer taking the lock first would wait for the
+ * connection while another writer holds the connection and waits for the lock.
+ */
+final class PetStatementCache {
+
+    private final SQLiteDatabase mDatabase;
+
+    // Compiled statements by the shape of the write, least recently used first
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    PetStatementCache(SQLiteDatabase database, final int maxStatements) {
+        mDatabase = database;
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(maxStatements, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > maxStatements) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Insert a pet with the given values. Returns the _ID of the new row.
+     *
+     * @throws android.database.SQLException if the row can't be inserted
+     */
+    synchronized long insert(ContentValues values) {
+        String[] columns = sortedColumns(values);
+
+        String key = "INSERT " + TextUtils.join(",", columns);
+        SQLiteStatement statement = mStatements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO " + PetEntry.TABLE_NAME + " (");
+            StringBuilder arguments = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(columns[i]);
+                arguments.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(") VALUES (").append(arguments).append(")");
+
+            statement = compile(key, sql.toString());
+        }
+
+        bind(statement, columns, values);
+        return statement.executeInsert();
+    }
+
+    /**
+     * Update the pet with the given _ID. Returns the number of updated rows.
+     */
+    synchronized int updateById(long id, ContentValues values) {
+        String[] columns = sortedColumns(values);
+
+        String key = "UPDATE " + TextUtils.join(",", columns);
+        SQLiteStatement statement = mStatements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("UPDATE " + PetEntry.TABLE_NAME + " SET ");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+            }
+            sql.append(" WHERE ").append(PetEntry._ID).append(" = ?");
+
+            statement = compile(key, sql.toString());
+        }
+
+        bind(statement, columns, values);
+        statement.bindLong(columns.length + 1, id);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Delete the pet with the given _ID. Returns the number of deleted rows.
+     */
+    synchronized int deleteById(long id) {
+        String key = "DELETE";
+        SQLiteStatement statement = mStatements.get(key);
+        if (statement == null) {
+            statement = compile(key, "DELETE FROM " + PetEntry.TABLE_NAME +
+                    " WHERE " + PetEntry._ID + " = ?");
+        }
+
+        statement.bindLong(1, id);
+        return statement.executeUpdateDelete();
+    }
+
+    private SQLiteStatement compile(String key, String sql) {
+        SQLiteStatement statement = mDatabase.compileStatement(sql);
+        mStatements.put(key, statement);
+        return statement;
+    }
+
+    // Columns of the values in a fixed order, so equal shapes share one statement
+    private static String[] sortedColumns(ContentValues values) {
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    private static void bind(SQLiteStatement statement, String[] columns, ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+    }
+}
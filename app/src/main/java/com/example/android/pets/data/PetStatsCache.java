@@ -0,0 +1,118 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.SparseArray;
+
+/**
+ * Cache of the results of the aggregate statistics queries, keyed by the URI matcher code of
+ * the statistics. Any write to the pets table invalidates all of them. Like the row cache, a
+ * result may only be stored with the generation taken before it was computed.
+ */
+final class PetStatsCache {
+
+    /** Rows and columns of a cached result */
+    private static final class Result {
+        final String[] columns;
+        final Object[][] rows;
+
+        Result(String[] columns, Object[][] rows) {
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    // Guarded by this
+    private final SparseArray<Result> mResults = new SparseArray<>();
+    private long mGeneration;
+
+    /**
+     * Returns a cursor with the cached result of the statistics, or null if it isn't cached.
+     */
+    synchronized Cursor get(int code, String[] projection) {
+        Result result = mResults.get(code);
+        return result == null ? null : toCursor(result, projection);
+    }
+
+    /**
+     * Generation to pass to {@link #put}, must be taken before the statistics are computed.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Read all rows of the cursor and store them, unless the pets changed after the given
+     * generation was taken. Returns a cursor holding the rows for the projection.
+     */
+    Cursor put(int code, Cursor cursor, long generation, String[] projection) {
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            Object[] row = new Object[columns.length];
+            for (int column = 0; column < columns.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        row[column] = null;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[column] = cursor.getDouble(column);
+                        break;
+                    default:
+                        row[column] = cursor.getString(column);
+                }
+            }
+            rows[i] = row;
+        }
+
+        Result result = new Result(columns, rows);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResults.put(code, result);
+            }
+        }
+        return toCursor(result, projection);
+    }
+
+    /**
+     * Drop all cached statistics.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mResults.clear();
+    }
+
+    // Build a cursor of the result with the columns of the projection
+    private static Cursor toCursor(Result result, String[] projection) {
+        if (projection == null) {
+            projection = result.columns;
+        }
+
+        int[] columnIndexes = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnIndexes[i] = indexOf(result.columns, projection[i]);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, result.rows.length);
+        for (Object[] row : result.rows) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[columnIndexes[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown statistics column " + column);
+    }
+}
@@ -0,0 +1,519 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetTombstoneEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delta sync of the pets with the shelter server. A sync pulls the changes since the sync token
+ * of the last pull, then pushes the pets changed on this device and the tombstones of the pets
+ * deleted here. Only changed rows travel in either direction. All writes go through the
+ * {@link PetProvider} as sync engine writes, in batches of {@link #BATCH_SIZE} operations per
+ * transaction.
+ *
+ * The server speaks JSON on a single resource, &lt;server&gt;/pets/changes:
+ * <pre>
+ * GET  pets/changes?since=&lt;token&gt;
+ *      &lt;- {"token": "...", "pets": [{"id", "name", "breed", "gender", "weight", "modified"}],
+ *          "deleted": ["&lt;id&gt;"]}
+ * POST pets/changes {"pets": [{"local_id", "id", "name", ...}], "deleted": ["&lt;id&gt;"]}
+ *      &lt;- {"pets": [{"local_id", "id"}]}
+ * </pre>
+ * A pushed pet without an "id" is new, the server answers with the id it got. Conflicts go to
+ * the later "modified" time: a pulled pet doesn't overwrite a local change made after it, that
+ * change is pushed instead. A pet deleted on the server is deleted here even if it was changed.
+ *
+ * The context and the server URL are passed in, so PetSyncEngineTest runs the engine against
+ * a MockWebServer in the same process and a provider of its own. Every method blocks on the
+ * network, never call them on the main thread.
+ */
+public class PetSyncEngine {
+
+    private static final String LOG_TAG = PetSyncEngine.class.getSimpleName();
+
+    /** Number of pets per request and per applyBatch transaction */
+    static final int BATCH_SIZE = 500;
+
+    // Timeout of connecting and of every read, in ms
+    private static final int TIMEOUT_MILLIS = 15000;
+
+    // Name of the preferences holding the sync token
+    private static final String PREFERENCES_NAME = "pet_sync";
+    private static final String KEY_TOKEN = "token";
+
+    // Fields of the JSON messages, the pets use the column names for their values
+    private static final String FIELD_TOKEN = "token";
+    private static final String FIELD_PETS = "pets";
+    private static final String FIELD_DELETED = "deleted";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_LOCAL_ID = "local_id";
+
+    // Columns read for a push
+    private static final String[] PUSH_PROJECTION = new String[] {
+            PetEntry._ID,
+            PetEntry.COLUMN_REMOTE_ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_MODIFIED
+    };
+
+    private static final Uri SYNC_PETS_URI = PetContract.asSyncAdapter(PetEntry.CONTENT_URI);
+    private static final Uri SYNC_TOMBSTONES_URI =
+            PetContract.asSyncAdapter(PetTombstoneEntry.CONTENT_URI);
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mPreferences;
+    private final URL mChangesUrl;
+
+    /**
+     * @param serverUrl base URL of the shelter server, e.g. http://10.0.2.2:8080/api/
+     */
+    public PetSyncEngine(Context context, String serverUrl) throws MalformedURLException {
+        mContentResolver = context.getContentResolver();
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mChangesUrl = new URL(new URL(serverUrl), "pets/changes");
+    }
+
+    /**
+     * Pull the changes of the server, then push the local changes.
+     *
+     * @return the number of pets pulled and pushed, including deletions
+     */
+    public synchronized int sync() throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        int pulled = pull();
+        int pushed = push();
+        Log.i(LOG_TAG, "Pulled " + pulled + " and pushed " + pushed + " changes in " +
+                (SystemClock.elapsedRealtime() - start) + " ms");
+        return pulled + pushed;
+    }
+
+    /**
+     * Forget the sync token, so the next sync pulls all pets again.
+     */
+    public void resetToken() {
+        mPreferences.edit().remove(KEY_TOKEN).apply();
+    }
+
+    private int pull() throws IOException {
+        String token = mPreferences.getString(KEY_TOKEN, null);
+        URL url = mChangesUrl;
+        if (token != null) {
+            url = new URL(mChangesUrl + "?since=" + URLEncoder.encode(token, "UTF-8"));
+        }
+
+        try {
+            JSONObject changes = request("GET", url, null);
+            int pulled = applyPulledPets(changes.optJSONArray(FIELD_PETS));
+            pulled += applyPulledDeletions(changes.optJSONArray(FIELD_DELETED));
+
+            // The token only moves on once the changes are stored, a failed pull starts over
+            mPreferences.edit().putString(KEY_TOKEN, changes.getString(FIELD_TOKEN)).apply();
+            return pulled;
+        } catch (JSONException e) {
+            throw new IOException("Malformed changes from " + url, e);
+        }
+    }
+
+    // Insert or update the pulled pets, one transaction per batch
+    private int applyPulledPets(JSONArray pets) throws JSONException, IOException {
+        if (pets == null) {
+            return 0;
+        }
+
+        int applied = 0;
+        for (int offset = 0; offset < pets.length(); offset += BATCH_SIZE) {
+            int end = Math.min(pets.length(), offset + BATCH_SIZE);
+
+            String[] remoteIds = new String[end - offset];
+            for (int i = offset; i < end; i++) {
+                remoteIds[i - offset] = pets.getJSONObject(i).getString(FIELD_ID);
+            }
+            Map<String, LocalPet> localPets = findLocalPets(remoteIds);
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(end - offset);
+            for (int i = offset; i < end; i++) {
+                JSONObject pet = pets.getJSONObject(i);
+                ContentProviderOperation operation =
+                        toOperation(pet, localPets.get(pet.getString(FIELD_ID)));
+                if (operation != null) {
+                    operations.add(operation);
+                }
+            }
+            applied += countChanges(applyBatch(operations));
+        }
+        return applied;
+    }
+
+    /**
+     * Returns the write which stores the pulled pet, or null if it is skipped.
+     */
+    private static ContentProviderOperation toOperation(JSONObject pet, LocalPet localPet)
+            throws JSONException {
+        String remoteId = pet.getString(FIELD_ID);
+        long modified = pet.getLong(PetEntry.COLUMN_MODIFIED);
+
+        String name = pet.getString(PetEntry.COLUMN_PET_NAME);
+        int gender = pet.optInt(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        int weight = pet.optInt(PetEntry.COLUMN_PET_WEIGHT, 0);
+        if (!PetEntry.isValidName(name) || !PetEntry.isValidGender(gender) ||
+                !PetEntry.isValidWeight(weight)) {
+            Log.w(LOG_TAG, "Skipping invalid pet " + pet);
+            return null;
+        }
+
+        // The local change is newer, it wins and goes to the server with the push
+        if (localPet != null && localPet.dirty && localPet.modified > modified) {
+            return null;
+        }
+
+        ContentProviderOperation.Builder builder;
+        if (localPet == null) {
+            builder = ContentProviderOperation.newInsert(SYNC_PETS_URI)
+                    .withValue(PetEntry.COLUMN_REMOTE_ID, remoteId);
+        } else {
+            // The pet may be changed again between the lookup and the batch, such a newer
+            // change is kept
+            builder = ContentProviderOperation.newUpdate(SYNC_PETS_URI)
+                    .withSelection(PetEntry._ID + "=? AND (" + PetEntry.COLUMN_DIRTY + "=0 OR " +
+                                    PetEntry.COLUMN_MODIFIED + "<=?)",
+                            new String[] {String.valueOf(localPet.id), String.valueOf(modified)});
+        }
+        return builder
+                .withValue(PetEntry.COLUMN_PET_NAME, name)
+                .withValue(PetEntry.COLUMN_PET_BREED,
+                        pet.isNull(PetEntry.COLUMN_PET_BREED)
+                                ? null
+                                : pet.getString(PetEntry.COLUMN_PET_BREED))
+                .withValue(PetEntry.COLUMN_PET_GENDER, gender)
+                .withValue(PetEntry.COLUMN_PET_WEIGHT, weight)
+                .withValue(PetEntry.COLUMN_MODIFIED, modified)
+                .withValue(PetEntry.COLUMN_DIRTY, 0)
+                .withYieldAllowed(true)
+                .build();
+    }
+
+    // Delete the pets the server deleted, one transaction per batch
+    private int applyPulledDeletions(JSONArray deleted) throws JSONException, IOException {
+        if (deleted == null) {
+            return 0;
+        }
+
+        int applied = 0;
+        for (int offset = 0; offset < deleted.length(); offset += BATCH_SIZE) {
+            int end = Math.min(deleted.length(), offset + BATCH_SIZE);
+            String[] remoteIds = new String[end - offset];
+            for (int i = offset; i < end; i++) {
+                remoteIds[i - offset] = deleted.getString(i);
+            }
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+            operations.add(ContentProviderOperation.newDelete(SYNC_PETS_URI)
+                    .withSelection(inSelection(PetEntry.COLUMN_REMOTE_ID, remoteIds.length),
+                            remoteIds)
+                    .build());
+            applied += countChanges(applyBatch(operations));
+        }
+        return applied;
+    }
+
+    // Returns the local pets with the given remote ids, by remote id
+    private Map<String, LocalPet> findLocalPets(String[] remoteIds) {
+        Map<String, LocalPet> localPets = new HashMap<>();
+        Cursor cursor = mContentResolver.query(PetEntry.CONTENT_URI,
+                new String[] {PetEntry._ID, PetEntry.COLUMN_REMOTE_ID, PetEntry.COLUMN_DIRTY,
+                        PetEntry.COLUMN_MODIFIED},
+                inSelection(PetEntry.COLUMN_REMOTE_ID, remoteIds.length), remoteIds, null);
+        if (cursor == null) {
+            return localPets;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                localPets.put(cursor.getString(1), new LocalPet(cursor.getLong(0),
+                        cursor.getInt(2) != 0, cursor.getLong(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return localPets;
+    }
+
+    private int push() throws IOException {
+        try {
+            return pushPets() + pushTombstones();
+        } catch (JSONException e) {
+            throw new IOException("Malformed push to " + mChangesUrl, e);
+        }
+    }
+
+    // Push the dirty pets a batch at a time, in the order of their _ID
+    private int pushPets() throws JSONException, IOException {
+        int pushed = 0;
+        long afterId = 0;
+        while (true) {
+            Uri page = PetEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT,
+                            String.valueOf(BATCH_SIZE))
+                    .build();
+            Cursor cursor = mContentResolver.query(page, PUSH_PROJECTION,
+                    PetEntry.COLUMN_DIRTY + "=1 AND " + PetEntry._ID + ">?",
+                    new String[] {String.valueOf(afterId)}, PetEntry._ID);
+            if (cursor == null) {
+                return pushed;
+            }
+
+            // Modification times of the pushed pets, by _ID
+            Map<Long, Long> modified = new HashMap<>();
+            JSONArray pets = new JSONArray();
+            try {
+                while (cursor.moveToNext()) {
+                    JSONObject pet = toJson(cursor);
+                    pets.put(pet);
+                    afterId = cursor.getLong(0);
+                    modified.put(afterId, cursor.getLong(cursor.getColumnIndexOrThrow(
+                            PetEntry.COLUMN_MODIFIED)));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (pets.length() == 0) {
+                return pushed;
+            }
+
+            JSONObject request = new JSONObject();
+            request.put(FIELD_PETS, pets);
+            request.put(FIELD_DELETED, new JSONArray());
+            JSONArray accepted = request("POST", mChangesUrl, request).optJSONArray(FIELD_PETS);
+            pushed += markPushed(accepted, modified);
+
+            if (pets.length() < BATCH_SIZE) {
+                return pushed;
+            }
+        }
+    }
+
+    private static JSONObject toJson(Cursor cursor) throws JSONException {
+        JSONObject pet = new JSONObject();
+        pet.put(FIELD_LOCAL_ID, cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry._ID)));
+        String remoteId =
+                cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_REMOTE_ID));
+        if (remoteId != null) {
+            pet.put(FIELD_ID, remoteId);
+        }
+        pet.put(PetEntry.COLUMN_PET_NAME,
+                cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME)));
+        String breed = cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED));
+        pet.put(PetEntry.COLUMN_PET_BREED, breed == null ? JSONObject.NULL : breed);
+        pet.put(PetEntry.COLUMN_PET_GENDER,
+                cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER)));
+        pet.put(PetEntry.COLUMN_PET_WEIGHT,
+                cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT)));
+        pet.put(PetEntry.COLUMN_MODIFIED,
+                cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_MODIFIED)));
+        return pet;
+    }
+
+    /**
+     * Store the remote ids the server accepted the pushed pets under and clear their dirty
+     * flag, unless a pet changed again while it was pushed.
+     */
+    private int markPushed(JSONArray accepted, Map<Long, Long> modified)
+            throws JSONException, IOException {
+        if (accepted == null) {
+            return 0;
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(accepted.length());
+        for (int i = 0; i < accepted.length(); i++) {
+            JSONObject pet = accepted.getJSONObject(i);
+            long localId = pet.getLong(FIELD_LOCAL_ID);
+            Long pushedModified = modified.get(localId);
+            if (pushedModified == null) {
+                Log.w(LOG_TAG, "Server accepted a pet which wasn't pushed: " + pet);
+                continue;
+            }
+            operations.add(ContentProviderOperation.newUpdate(SYNC_PETS_URI)
+                    .withSelection(PetEntry._ID + "=? AND " + PetEntry.COLUMN_MODIFIED + "=?",
+                            new String[] {String.valueOf(localId),
+                                    String.valueOf(pushedModified)})
+                    .withValue(PetEntry.COLUMN_REMOTE_ID, pet.getString(FIELD_ID))
+                    .withValue(PetEntry.COLUMN_DIRTY, 0)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        return countChanges(applyBatch(operations));
+    }
+
+    // Push the tombstones a batch at a time and drop them once the server has them
+    private int pushTombstones() throws JSONException, IOException {
+        int pushed = 0;
+        String afterRemoteId = "";
+        while (true) {
+            Uri page = PetTombstoneEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_LIMIT,
+                            String.valueOf(BATCH_SIZE))
+                    .build();
+            Cursor cursor = mContentResolver.query(page,
+                    new String[] {PetTombstoneEntry.COLUMN_REMOTE_ID},
+                    PetTombstoneEntry.COLUMN_REMOTE_ID + ">?", new String[] {afterRemoteId},
+                    PetTombstoneEntry.COLUMN_REMOTE_ID);
+            if (cursor == null) {
+                return pushed;
+            }
+
+            String[] remoteIds;
+            try {
+                remoteIds = new String[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    remoteIds[i] = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (remoteIds.length == 0) {
+                return pushed;
+            }
+            afterRemoteId = remoteIds[remoteIds.length - 1];
+
+            JSONObject request = new JSONObject();
+            request.put(FIELD_PETS, new JSONArray());
+            request.put(FIELD_DELETED, new JSONArray(Arrays.asList(remoteIds)));
+            request("POST", mChangesUrl, request);
+
+            pushed += mContentResolver.delete(SYNC_TOMBSTONES_URI,
+                    inSelection(PetTombstoneEntry.COLUMN_REMOTE_ID, remoteIds.length),
+                    remoteIds);
+
+            if (remoteIds.length < BATCH_SIZE) {
+                return pushed;
+            }
+        }
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws IOException {
+        if (operations.isEmpty()) {
+            return new ContentProviderResult[0];
+        }
+        try {
+            return mContentResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            throw new IOException("Failed to store synced pets", e);
+        } catch (OperationApplicationException e) {
+            throw new IOException("Failed to store synced pets", e);
+        }
+    }
+
+    // Returns the number of rows inserted, updated or deleted by a batch
+    private static int countChanges(ContentProviderResult[] results) {
+        int changes = 0;
+        for (ContentProviderResult result : results) {
+            changes += result.uri != null ? 1 : result.count;
+        }
+        return changes;
+    }
+
+    // Returns "column IN (?,?,...)" with the given number of arguments
+    private static String inSelection(String column, int count) {
+        String[] placeholders = new String[count];
+        Arrays.fill(placeholders, "?");
+        return column + " IN (" + TextUtils.join(",", placeholders) + ")";
+    }
+
+    /**
+     * Send a request with an optional JSON body and return the JSON response. Any status
+     * other than 2xx fails the request.
+     */
+    private static JSONObject request(String method, URL url, JSONObject body)
+            throws IOException, JSONException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestProperty("Accept", PetContract.MIME_TYPE_JSON);
+
+            if (body != null) {
+                byte[] bytes = body.toString().getBytes("UTF-8");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(bytes.length);
+                connection.setRequestProperty("Content-Type",
+                        PetContract.MIME_TYPE_JSON + "; charset=utf-8");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                throw new IOException(method + " " + url + " failed with " + status);
+            }
+            return new JSONObject(readFully(connection.getInputStream()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Sync state of a local pet which is also on the server
+    private static final class LocalPet {
+        final long id;
+        final boolean dirty;
+        final long modified;
+
+        LocalPet(long id, boolean dirty, long modified) {
+            this.id = id;
+            this.dirty = dirty;
+            this.modified = modified;
+        }
+    }
+}